@@ -0,0 +1,220 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.RemoteException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link BillingConnectionManager} through connects and disconnects by calling its
+ * ServiceConnection directly, with {@link FakeInAppBillingService} as the service.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BillingConnectionManagerTest {
+    private static final ComponentName SERVICE =
+            new ComponentName(BillingConnectionManager.BILLING_PACKAGE, "InAppBillingService");
+
+    private FakeInAppBillingService mFake;
+    private BindingContext mContext;
+    private BillingConnectionManager mManager;
+
+    // Records the connection instead of binding, so the test decides when it connects.
+    private static class BindingContext extends ContextWrapper {
+        volatile ServiceConnection mConnection;
+
+        BindingContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+            mConnection = conn;
+            return true;
+        }
+
+        @Override
+        public void unbindService(ServiceConnection conn) {
+        }
+    }
+
+    private static class RecordingCallback implements BillingConnectionManager.SetupCallback {
+        final CountDownLatch mFinished = new CountDownLatch(1);
+        final AtomicReference<IabResult> mResult = new AtomicReference<IabResult>();
+
+        @Override
+        public void onSetupFinished(IabResult result) {
+            mResult.set(result);
+            mFinished.countDown();
+        }
+
+        @Override
+        public void onCapabilitiesChanged() {
+        }
+
+        IabResult await() throws InterruptedException {
+            assertTrue("setup callback never called", mFinished.await(5, TimeUnit.SECONDS));
+            return mResult.get();
+        }
+    }
+
+    // A service whose probe hangs until the test lets it go.
+    private static class StalledService extends FakeInAppBillingService {
+        final CountDownLatch mProbing = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        StalledService(String packageName) {
+            super(packageName);
+        }
+
+        @Override
+        public int isBillingSupported(int apiVersion, String packageName, String type)
+                throws RemoteException {
+            mProbing.countDown();
+            try {
+                mRelease.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.isBillingSupported(apiVersion, packageName, type);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context target = InstrumentationRegistry.getTargetContext();
+        mFake = new FakeInAppBillingService(target.getPackageName());
+        mContext = new BindingContext(target);
+        mManager = new BillingConnectionManager() {
+            @Override
+            boolean isServiceAvailable(Context context, Intent serviceIntent) {
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void acquireWhileReconnecting_finishesSetupOnReconnect() throws Exception {
+        RecordingCallback first = new RecordingCallback();
+        mManager.acquire(mContext, new BillingMetrics(), first);
+        assertNotNull(mContext.mConnection);
+        connect();
+        assertTrue(first.await().isSuccess());
+
+        disconnect();
+        RecordingCallback second = new RecordingCallback();
+        mManager.acquire(mContext, new BillingMetrics(), second);
+        assertEquals(1, second.mFinished.getCount());
+
+        int calls = mFake.getCallCount();
+        connect();
+        IabResult result = second.await();
+        assertTrue(result.toString(), result.isSuccess());
+        // The reconnect reuses the first probe rather than probing again.
+        assertEquals(calls, mFake.getCallCount());
+
+        mManager.release(second);
+        mManager.release(first);
+    }
+
+    @Test
+    public void acquireWhileConnected_reusesProbe() throws Exception {
+        RecordingCallback first = new RecordingCallback();
+        mManager.acquire(mContext, new BillingMetrics(), first);
+        connect();
+        assertTrue(first.await().isSuccess());
+        int calls = mFake.getCallCount();
+
+        RecordingCallback second = new RecordingCallback();
+        mManager.acquire(mContext, new BillingMetrics(), second);
+        assertTrue(second.await().isSuccess());
+        assertEquals(calls, mFake.getCallCount());
+
+        mManager.release(second);
+        mManager.release(first);
+    }
+
+    @Test
+    public void reconnectWhileProbing_probesTheNewConnection() throws Exception {
+        StalledService stalled = new StalledService(InstrumentationRegistry.getTargetContext().getPackageName());
+        RecordingCallback first = new RecordingCallback();
+        mManager.acquire(mContext, new BillingMetrics(), first);
+        connect(stalled);
+        assertTrue(stalled.mProbing.await(5, TimeUnit.SECONDS));
+
+        // The service goes away and comes back while the first probe is still running.
+        disconnect();
+        connect(mFake);
+        stalled.mRelease.countDown();
+
+        IabResult result = first.await();
+        assertTrue(result.toString(), result.isSuccess());
+        assertTrue(mFake.getCallCount() > 0);
+
+        mManager.release(first);
+    }
+
+    @Test
+    public void releaseAndAcquireWhileProbing_probesTheNewConnection() throws Exception {
+        StalledService stalled = new StalledService(InstrumentationRegistry.getTargetContext().getPackageName());
+        RecordingCallback first = new RecordingCallback();
+        mManager.acquire(mContext, new BillingMetrics(), first);
+        connect(stalled);
+        assertTrue(stalled.mProbing.await(5, TimeUnit.SECONDS));
+
+        // Like an Activity recreated during startup: the old helper lets go, a new one binds.
+        mManager.release(first);
+        RecordingCallback second = new RecordingCallback();
+        mManager.acquire(mContext, new BillingMetrics(), second);
+        connect(mFake);
+        stalled.mRelease.countDown();
+
+        IabResult result = second.await();
+        assertTrue(result.toString(), result.isSuccess());
+        assertEquals(1, first.mFinished.getCount());
+
+        mManager.release(second);
+    }
+
+    private void connect() {
+        connect(mFake);
+    }
+
+    private void connect(final FakeInAppBillingService service) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mContext.mConnection.onServiceConnected(SERVICE, service);
+            }
+        });
+    }
+
+    private void disconnect() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mContext.mConnection.onServiceDisconnected(SERVICE);
+            }
+        });
+    }
+}
@@ -0,0 +1,424 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Base64;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the store's billing service, for testing and load testing
+ * {@link IabHelper} without the store app. Purchases are signed with a key pair generated
+ * for each instance; pass {@link #getPublicKeyBase64} to the helper so they verify. Hook
+ * the fake up with {@link IabHelper#setUpForTesting}.
+ * <p>
+ * It can hold any number of purchases, served in pages of {@link #setPageSize} with
+ * continuation tokens, and answers getSkuDetails() for whatever SKUs are asked for (at most
+ * 20 per call, like the real service). Every call can be slowed down with
+ * {@link #setLatencyMillis} and made to fail with {@link #failNextCalls} or
+ * {@link #setFailureRate}. Purchase flows (getBuyIntent) are not supported.
+ * <p>
+ * All methods are thread-safe; calls are served concurrently, like binder calls.
+ */
+public class FakeInAppBillingService extends IInAppBillingService.Stub {
+    // Same limit as the real service
+    static final int MAX_SKUS_PER_DETAILS_CALL = 20;
+
+    private final PrivateKey mPrivateKey;
+    private final String mPublicKeyBase64;
+    private final String mPackageName;
+
+    private final Map<String, List<OwnedPurchase>> mOwned = new HashMap<String, List<OwnedPurchase>>();
+    private int mNextPurchaseId = 0;
+    private int mPageSize = 100;
+    private int mBillingSupportedResponse = IabHelper.BILLING_RESPONSE_RESULT_OK;
+    private boolean mSubscriptionsSupported = true;
+
+    private volatile long mLatencyMillis = 0;
+    private int mFailuresLeft = 0;
+    private int mForcedFailureResponse;
+    private double mFailureRate = 0;
+    private int mRandomFailureResponse;
+    private final Random mRandom = new Random(42);
+
+    private final AtomicInteger mCalls = new AtomicInteger();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+
+    private static class OwnedPurchase {
+        final String mSku;
+        final String mToken;
+        final String mJson;
+        final String mSignature;
+
+        OwnedPurchase(String sku, String token, String json, String signature) {
+            mSku = sku;
+            mToken = token;
+            mJson = json;
+            mSignature = signature;
+        }
+    }
+
+    /**
+     * @param packageName Package name to put in purchases, normally the app under test's.
+     */
+    public FakeInAppBillingService(String packageName) {
+        mPackageName = packageName;
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            KeyPair keyPair = generator.generateKeyPair();
+            mPrivateKey = keyPair.getPrivate();
+            mPublicKeyBase64 = Base64.encodeToString(keyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("RSA is not available", e);
+        }
+    }
+
+    /** The Base64-encoded public key that verifies this fake's purchases. */
+    public String getPublicKeyBase64() {
+        return mPublicKeyBase64;
+    }
+
+    /**
+     * Adds count owned purchases of itemType, with SKUs skuPrefix0, skuPrefix1, ...
+     *
+     * @return The purchase tokens of the new purchases, in order.
+     */
+    public synchronized List<String> addPurchases(String itemType, String skuPrefix, int count) {
+        List<String> tokens = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add(addPurchase(itemType, skuPrefix + i));
+        }
+        return tokens;
+    }
+
+    /**
+     * Adds one owned purchase of sku, signed with this fake's key.
+     *
+     * @return Its purchase token.
+     */
+    public synchronized String addPurchase(String itemType, String sku) {
+        int id = mNextPurchaseId++;
+        String token = "fake-token-" + itemType + "-" + id;
+        String json;
+        try {
+            JSONObject o = new JSONObject();
+            o.put("orderId", "FAKE." + id);
+            o.put("packageName", mPackageName);
+            o.put("productId", sku);
+            o.put("purchaseTime", 1500000000000L + id);
+            o.put("purchaseState", 0);
+            o.put("developerPayload", "");
+            o.put("purchaseToken", token);
+            json = o.toString();
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        ownedList(itemType).add(new OwnedPurchase(sku, token, json, sign(json)));
+        return token;
+    }
+
+    /** Removes all owned purchases. */
+    public synchronized void clearPurchases() {
+        mOwned.clear();
+    }
+
+    /** Number of purchases of itemType still owned (not consumed). */
+    public synchronized int getOwnedCount(String itemType) {
+        return ownedList(itemType).size();
+    }
+
+    /** How many purchases getPurchases() returns per page. Defaults to 100. */
+    public synchronized void setPageSize(int pageSize) {
+        mPageSize = pageSize;
+    }
+
+    /** What isBillingSupported() answers, and whether subscriptions are supported. */
+    public synchronized void setBillingSupported(int response, boolean subscriptionsSupported) {
+        mBillingSupportedResponse = response;
+        mSubscriptionsSupported = subscriptionsSupported;
+    }
+
+    /** Makes every call block this long before answering. */
+    public void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Makes the next count calls fail with response, a BILLING_RESPONSE_RESULT_* code, or
+     * {@link IabHelper#IABHELPER_REMOTE_EXCEPTION} to throw a RemoteException.
+     */
+    public synchronized void failNextCalls(int count, int response) {
+        mFailuresLeft = count;
+        mForcedFailureResponse = response;
+    }
+
+    /**
+     * Makes each call fail with probability rate (0 to 1), answering response as in
+     * {@link #failNextCalls}. The random sequence is the same on every run.
+     */
+    public synchronized void setFailureRate(double rate, int response) {
+        mFailureRate = rate;
+        mRandomFailureResponse = response;
+    }
+
+    /** Calls served so far. */
+    public int getCallCount() {
+        return mCalls.get();
+    }
+
+    /** The most calls that were being served at the same time. */
+    public int getMaxConcurrentCalls() {
+        return mMaxInFlight.get();
+    }
+
+    @Override
+    public int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException {
+        int failure = begin();
+        try {
+            if (failure != IabHelper.BILLING_RESPONSE_RESULT_OK) return failure;
+            synchronized (this) {
+                if (IabHelper.ITEM_TYPE_SUBS.equals(type) && !mSubscriptionsSupported) {
+                    return IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE;
+                }
+                return mBillingSupportedResponse;
+            }
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle)
+            throws RemoteException {
+        int failure = begin();
+        try {
+            Bundle result = new Bundle();
+            if (failure != IabHelper.BILLING_RESPONSE_RESULT_OK) {
+                result.putInt(IabHelper.RESPONSE_CODE, failure);
+                return result;
+            }
+            ArrayList<String> skus = skusBundle.getStringArrayList(IabHelper.GET_SKU_DETAILS_ITEM_LIST);
+            if (skus == null || skus.size() > MAX_SKUS_PER_DETAILS_CALL) {
+                result.putInt(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR);
+                return result;
+            }
+            ArrayList<String> details = new ArrayList<String>(skus.size());
+            for (String sku : skus) {
+                details.add(skuDetailsJson(type, sku));
+            }
+            result.putInt(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_OK);
+            result.putStringArrayList(IabHelper.RESPONSE_GET_SKU_DETAILS_LIST, details);
+            return result;
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type,
+                               String developerPayload) throws RemoteException {
+        return unsupported();
+    }
+
+    @Override
+    public Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken)
+            throws RemoteException {
+        int failure = begin();
+        try {
+            Bundle result = new Bundle();
+            if (failure != IabHelper.BILLING_RESPONSE_RESULT_OK) {
+                result.putInt(IabHelper.RESPONSE_CODE, failure);
+                return result;
+            }
+            ArrayList<String> skus = new ArrayList<String>();
+            ArrayList<String> data = new ArrayList<String>();
+            ArrayList<String> signatures = new ArrayList<String>();
+            String nextToken = null;
+            synchronized (this) {
+                List<OwnedPurchase> owned = ownedList(type);
+                int start = continuationToken == null ? 0 : Integer.parseInt(continuationToken);
+                int end = Math.min(owned.size(), start + mPageSize);
+                for (int i = start; i < end; i++) {
+                    OwnedPurchase p = owned.get(i);
+                    skus.add(p.mSku);
+                    data.add(p.mJson);
+                    signatures.add(p.mSignature);
+                }
+                if (end < owned.size()) nextToken = String.valueOf(end);
+            }
+            result.putInt(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_OK);
+            result.putStringArrayList(IabHelper.RESPONSE_INAPP_ITEM_LIST, skus);
+            result.putStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST, data);
+            result.putStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST, signatures);
+            if (nextToken != null) result.putString(IabHelper.INAPP_CONTINUATION_TOKEN, nextToken);
+            return result;
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public int consumePurchase(int apiVersion, String packageName, String purchaseToken)
+            throws RemoteException {
+        int failure = begin();
+        try {
+            if (failure != IabHelper.BILLING_RESPONSE_RESULT_OK) return failure;
+            synchronized (this) {
+                Iterator<OwnedPurchase> it = ownedList(IabHelper.ITEM_TYPE_INAPP).iterator();
+                while (it.hasNext()) {
+                    if (it.next().mToken.equals(purchaseToken)) {
+                        it.remove();
+                        return IabHelper.BILLING_RESPONSE_RESULT_OK;
+                    }
+                }
+                return IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+            }
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public int stub(int apiVersion, String packageName, String type) throws RemoteException {
+        return IabHelper.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    @Override
+    public Bundle getBuyIntentToReplaceSkus(int apiVersion, String packageName, List<String> oldSkus,
+                                            String newSku, String type, String developerPayload)
+            throws RemoteException {
+        return unsupported();
+    }
+
+    @Override
+    public String getUserAchievements(String packageName) throws RemoteException {
+        return null;
+    }
+
+    @Override
+    public String unlockAchievement(String packageName, String achievementId) throws RemoteException {
+        return null;
+    }
+
+    @Override
+    public String incrementAchievement(String packageName, String achievementId, int numSteps)
+            throws RemoteException {
+        return null;
+    }
+
+    @Override
+    public String submitScore(String packageName, String scoreId, int scoreValue) throws RemoteException {
+        return null;
+    }
+
+    @Override
+    public void openLeaderBoard(String packageName, String scoreId, String scope) throws RemoteException {
+    }
+
+    @Override
+    public void trackUserEvents(String actionName, String packageName) throws RemoteException {
+    }
+
+    // Starts serving a call: applies latency, counts it, and returns the response it must fail
+    // with (BILLING_RESPONSE_RESULT_OK if none). Must be paired with end().
+    private int begin() throws RemoteException {
+        mCalls.incrementAndGet();
+        int inFlight = mInFlight.incrementAndGet();
+        int max;
+        while (inFlight > (max = mMaxInFlight.get()) && !mMaxInFlight.compareAndSet(max, inFlight)) {
+            // Retry until we either win or someone else recorded a larger value.
+        }
+
+        long latency = mLatencyMillis;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int failure = IabHelper.BILLING_RESPONSE_RESULT_OK;
+        synchronized (this) {
+            if (mFailuresLeft > 0) {
+                mFailuresLeft--;
+                failure = mForcedFailureResponse;
+            } else if (mFailureRate > 0 && mRandom.nextDouble() < mFailureRate) {
+                failure = mRandomFailureResponse;
+            }
+        }
+        if (failure == IabHelper.IABHELPER_REMOTE_EXCEPTION) {
+            mInFlight.decrementAndGet();
+            throw new RemoteException("Injected failure");
+        }
+        return failure;
+    }
+
+    private void end() {
+        mInFlight.decrementAndGet();
+    }
+
+    private Bundle unsupported() {
+        Bundle result = new Bundle();
+        result.putInt(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_ERROR);
+        return result;
+    }
+
+    private List<OwnedPurchase> ownedList(String itemType) {
+        List<OwnedPurchase> list = mOwned.get(itemType);
+        if (list == null) {
+            list = new ArrayList<OwnedPurchase>();
+            mOwned.put(itemType, list);
+        }
+        return list;
+    }
+
+    private String sign(String data) {
+        try {
+            Signature signature = Signature.getInstance("SHA1withRSA");
+            signature.initSign(mPrivateKey);
+            signature.update(data.getBytes("UTF-8"));
+            return Base64.encodeToString(signature.sign(), Base64.NO_WRAP);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String skuDetailsJson(String type, String sku) {
+        try {
+            JSONObject o = new JSONObject();
+            o.put("productId", sku);
+            o.put("type", type);
+            o.put("price", "10,000 IRR");
+            o.put("price_amount_micros", 10000000000L);
+            o.put("price_currency_code", "IRR");
+            o.put("title", "Fake " + sku);
+            o.put("description", "Fake product " + sku);
+            return o.toString();
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs inventory queries and consumptions end to end against {@link FakeInAppBillingService}:
+ * paging, signature verification, and the consume calls the service sees.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IabHelperTest {
+    private FakeInAppBillingService mFake;
+    private IabHelper mHelper;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mFake = new FakeInAppBillingService(context.getPackageName());
+        mHelper = new IabHelper(context, mFake.getPublicKeyBase64());
+        mHelper.setUpForTesting(mFake, true);
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.disposeWhenFinished();
+    }
+
+    @Test
+    public void queryInventoryReturnsEveryPage() throws Exception {
+        List<String> tokens = mFake.addPurchases(IabHelper.ITEM_TYPE_INAPP, "item_", 250);
+        mFake.addPurchases(IabHelper.ITEM_TYPE_SUBS, "sub_", 3);
+        mFake.setPageSize(100);
+
+        Inventory inventory = mHelper.queryInventory();
+
+        assertEquals(250, inventory.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP).size());
+        assertEquals(3, inventory.getAllOwnedSkus(IabHelper.ITEM_TYPE_SUBS).size());
+        Purchase last = inventory.getPurchase("item_249");
+        assertEquals(tokens.get(249), last.getToken());
+        assertEquals(IabHelper.ITEM_TYPE_INAPP, last.getItemType());
+        assertTrue(inventory.hasPurchase("sub_2"));
+    }
+
+    @Test
+    public void pipelinedQueryReturnsEveryPageInOrder() throws Exception {
+        List<String> tokens = mFake.addPurchases(IabHelper.ITEM_TYPE_INAPP, "item_", 250);
+        // Many more pages than the pipeline holds at once.
+        mFake.setPageSize(10);
+        mHelper.enablePipelinedQueries(true);
+
+        final List<String> streamed = new ArrayList<String>();
+        mHelper.streamPurchases(IabHelper.ITEM_TYPE_INAPP, new IabHelper.PurchaseStreamListener() {
+            @Override
+            public void onPurchase(Purchase purchase) {
+                streamed.add(purchase.getToken());
+            }
+        });
+
+        assertEquals(tokens, streamed);
+    }
+
+    @Test
+    public void consumeRemovesThePurchase() throws Exception {
+        mFake.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+        mFake.addPurchase(IabHelper.ITEM_TYPE_INAPP, "premium");
+        Purchase gas = mHelper.queryInventory().getPurchase("gas");
+
+        mHelper.consume(gas);
+
+        assertEquals(1, mFake.getOwnedCount(IabHelper.ITEM_TYPE_INAPP));
+        Inventory inventory = mHelper.queryInventory();
+        assertFalse(inventory.hasPurchase("gas"));
+        assertTrue(inventory.hasPurchase("premium"));
+
+        // The second time, the service no longer owns it.
+        try {
+            mHelper.consume(gas);
+            fail("Consumed the same purchase twice");
+        } catch (IabException e) {
+            assertEquals(IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED, e.getResult().getResponse());
+        }
+    }
+
+    @Test
+    public void queryOverlappingAConsumeLeavesThePurchaseOut() throws Exception {
+        final AtomicBoolean hold = new AtomicBoolean();
+        final CountDownLatch listed = new CountDownLatch(1);
+        final CountDownLatch consumed = new CountDownLatch(1);
+        // Lists the purchases, then holds the page until the consume has gone through.
+        FakeInAppBillingService fake = new FakeInAppBillingService(
+                InstrumentationRegistry.getTargetContext().getPackageName()) {
+            @Override
+            public Bundle getPurchases(int apiVersion, String packageName, String type,
+                                       String continuationToken) throws RemoteException {
+                Bundle page = super.getPurchases(apiVersion, packageName, type, continuationToken);
+                if (IabHelper.ITEM_TYPE_INAPP.equals(type) && hold.getAndSet(false)) {
+                    listed.countDown();
+                    try {
+                        consumed.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return page;
+            }
+        };
+        fake.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+        final IabHelper helper = new IabHelper(InstrumentationRegistry.getTargetContext(),
+                fake.getPublicKeyBase64());
+        helper.setUpForTesting(fake, true);
+        Purchase gas = helper.queryInventory().getPurchase("gas");
+        hold.set(true);
+
+        final AtomicReference<Inventory> inventory = new AtomicReference<Inventory>();
+        Thread query = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    inventory.set(helper.queryInventory());
+                } catch (IabException e) {
+                    // Leaves inventory null.
+                }
+            }
+        });
+        query.start();
+        assertTrue(listed.await(5, TimeUnit.SECONDS));
+        helper.consume(gas);
+        consumed.countDown();
+        query.join(5000);
+
+        assertFalse(inventory.get().hasPurchase("gas"));
+        helper.disposeWhenFinished();
+    }
+
+    @Test
+    public void consumeRetriesWhileServiceIsUnavailable() throws Exception {
+        mFake.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+        Purchase gas = mHelper.queryInventory().getPurchase("gas");
+        mFake.failNextCalls(IabHelper.MAX_CONSUME_ATTEMPTS - 1,
+                IabHelper.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE);
+
+        mHelper.consume(gas);
+
+        assertEquals(0, mFake.getOwnedCount(IabHelper.ITEM_TYPE_INAPP));
+    }
+
+    @Test
+    public void subscriptionsCantBeConsumed() throws Exception {
+        mFake.addPurchase(IabHelper.ITEM_TYPE_SUBS, "infinite_gas");
+        Purchase subscription = mHelper.queryInventory().getPurchase("infinite_gas");
+        try {
+            mHelper.consume(subscription);
+            fail("Consumed a subscription");
+        } catch (IabException e) {
+            assertEquals(IabHelper.IABHELPER_INVALID_CONSUMPTION, e.getResult().getResponse());
+        }
+        assertEquals(1, mFake.getOwnedCount(IabHelper.ITEM_TYPE_SUBS));
+    }
+
+    @Test
+    public void asyncQueryThenConsume() throws Exception {
+        mFake.addPurchase(IabHelper.ITEM_TYPE_INAPP, "gas");
+
+        final AtomicReference<Inventory> inventory = new AtomicReference<Inventory>();
+        final CountDownLatch queried = new CountDownLatch(1);
+        mHelper.queryInventoryAsync(new IabHelper.QueryInventoryFinishedListener() {
+            @Override
+            public void onQueryInventoryFinished(IabResult result, Inventory inv) {
+                if (result.isSuccess()) inventory.set(inv);
+                queried.countDown();
+            }
+        });
+        assertTrue(queried.await(5, TimeUnit.SECONDS));
+        Purchase gas = inventory.get().getPurchase("gas");
+
+        final AtomicReference<IabResult> consumed = new AtomicReference<IabResult>();
+        final CountDownLatch done = new CountDownLatch(1);
+        mHelper.consumeAsync(gas, new IabHelper.OnConsumeFinishedListener() {
+            @Override
+            public void onConsumeFinished(Purchase purchase, IabResult result) {
+                consumed.set(result);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(consumed.get().toString(), consumed.get().isSuccess());
+        assertEquals(0, mFake.getOwnedCount(IabHelper.ITEM_TYPE_INAPP));
+    }
+}
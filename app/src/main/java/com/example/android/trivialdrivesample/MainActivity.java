@@ -31,12 +31,19 @@ import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 
+import com.example.android.trivialdrivesample.util.BillingPrewarmer;
 import com.example.android.trivialdrivesample.util.IabBroadcastReceiver;
 import com.example.android.trivialdrivesample.util.IabHelper;
 import com.example.android.trivialdrivesample.util.IabResult;
 import com.example.android.trivialdrivesample.util.Inventory;
+import com.example.android.trivialdrivesample.util.InventoryRefreshCoalescer;
 import com.example.android.trivialdrivesample.util.Purchase;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * Example game using in-app billing version 3.
  * <p>
@@ -96,13 +103,31 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
   static final String SKU_GAS = "skuGas2020Test";
   // (arbitrary) request code for the purchase flow
   static final int RC_REQUEST = 10001;
+  // How long to wait for more purchase broadcasts before refreshing the inventory
+  static final long REFRESH_COALESCE_WINDOW_MS = 500;
+  /* BASE64_ENCODED_PUBLIC_KEY should be YOUR APPLICATION'S PUBLIC KEY
+   * (that you got from the Google Play developer console). This is not your
+   * developer public key, it's the *app-specific* public key.
+   *
+   * Instead of just storing the entire literal string here embedded in the
+   * program,  construct the key at runtime from pieces or
+   * use bit manipulation (for example, XOR with some other string) to hide
+   * the actual key.  The key itself is not secret information, but we don't
+   * want to make it easy for an attacker to replace the public key with one
+   * of their own and then fake messages from the server.
+   */
+  static final String BASE64_ENCODED_PUBLIC_KEY = "MIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQDMbwTACStPKI2X1k0TeVUcw64ccJKGlYqQcGGF19FLiUBD2NB6xugpZrKISTZYvozeRg98vea0MzfPj9l92sEuPoZq/37cU7+LyviIWRvWdjm6Vz4tkxLQwhy7l87wVcYn/QkMteGfY34u+M/bV6WUA8TnhZiVk0fw301k7xXbwQIDAQAB";
   // How many units (1/4 tank is our unit) fill in the tank.
   static final int TANK_MAX = 4;
   // Graphics for the gas gauge
   static int[] TANK_RES_IDS = {R.drawable.gas0, R.drawable.gas1, R.drawable.gas2,
     R.drawable.gas3, R.drawable.gas4};
+  // Saves the game data off the UI thread, one save at a time and in order
+  static final ExecutorService sSaveExecutor = Executors.newSingleThreadExecutor();
   // Does the user have the premium upgrade?
   boolean mIsPremium = false;
+  // Has a live inventory query (as opposed to the saved snapshot) completed yet?
+  boolean mGotLiveInventory = false;
   // Current amount of gas in tank, in units
   int mTank;
 
@@ -112,6 +137,9 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
   // Provides purchase notification while this app is running
   IabBroadcastReceiver mBroadcastReceiver;
 
+  // Merges bursts of purchase notifications into single inventory refreshes
+  InventoryRefreshCoalescer mRefreshCoalescer;
+
   // Called when consumption is complete
   IabHelper.OnConsumeFinishedListener mConsumeFinishedListener = new IabHelper.OnConsumeFinishedListener() {
     public void onConsumeFinished(Purchase purchase, IabResult result) {
@@ -128,17 +156,31 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
         // game world's logic, which in our case means filling the gas tank a bit
         Log.d(TAG, "Consumption successful. Provisioning.");
         mTank = mTank == TANK_MAX ? TANK_MAX : mTank + 1;
-        saveData();
+        saveData(Collections.singletonList(purchase));
         alert("You filled the tank. Your tank is now " + String.valueOf(mTank) + "/4 full!");
       } else {
         complain("Error while consuming: " + result);
+        updateUi();
       }
-      updateUi();
       setWaitScreen(false);
       Log.d(TAG, "End consumption flow.");
     }
   };
 
+  // Called at setup with gas that was consumed on an earlier run, which died before saving it
+  IabHelper.OnConsumeRecoveredListener mConsumeRecoveredListener = new IabHelper.OnConsumeRecoveredListener() {
+    public void onConsumeRecovered(List<Purchase> purchases) {
+      // if we were disposed of in the meantime, quit.
+      if (mHelper == null) return;
+
+      for (Purchase purchase : purchases) {
+        Log.d(TAG, "Recovered consumption of " + purchase.getSku() + ". Provisioning.");
+        mTank = mTank == TANK_MAX ? TANK_MAX : mTank + 1;
+      }
+      saveData(purchases);
+    }
+  };
+
   // Listener that's called when we finish querying the items and subscriptions we own
   IabHelper.QueryInventoryFinishedListener mGotInventoryListener = new IabHelper.QueryInventoryFinishedListener() {
     public void onQueryInventoryFinished(IabResult result, Inventory inventory) {
@@ -154,6 +196,7 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
       }
 
       Log.d(TAG, "Query inventory was successful.");
+      mGotLiveInventory = true;
 
       /*
        * Check for items we own. Notice that for each purchase, we check
@@ -184,6 +227,23 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
       Log.d(TAG, "Initial inventory query finished; enabling main UI.");
     }
   };
+  // Listener for the inventory saved on the previous run. It only updates what we show;
+  // anything that needs the billing service (like consuming gas) waits for the live query.
+  IabHelper.QueryInventoryFinishedListener mSnapshotListener = new IabHelper.QueryInventoryFinishedListener() {
+    public void onQueryInventoryFinished(IabResult result, Inventory inventory) {
+      // Disposed of, or already superseded by the live inventory? Then there's nothing to do.
+      if (mHelper == null || mGotLiveInventory) return;
+      if (result.isFailure()) {
+        Log.d(TAG, "No inventory snapshot: " + result);
+        return;
+      }
+
+      Purchase premiumPurchase = inventory.getPurchase(SKU_PREMIUM);
+      mIsPremium = (premiumPurchase != null && verifyDeveloperPayload(premiumPurchase));
+      Log.d(TAG, "From snapshot, user is " + (mIsPremium ? "PREMIUM" : "NOT PREMIUM"));
+      updateUi();
+    }
+  };
   // Callback for when a purchase is finished
   IabHelper.OnIabPurchaseFinishedListener mPurchaseFinishedListener = new IabHelper.OnIabPurchaseFinishedListener() {
     public void onIabPurchaseFinished(IabResult result, Purchase purchase) {
@@ -234,22 +294,9 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
     // load game data
     loadData();
 
-    /* base64EncodedPublicKey should be YOUR APPLICATION'S PUBLIC KEY
-     * (that you got from the Google Play developer console). This is not your
-     * developer public key, it's the *app-specific* public key.
-     *
-     * Instead of just storing the entire literal string here embedded in the
-     * program,  construct the key at runtime from pieces or
-     * use bit manipulation (for example, XOR with some other string) to hide
-     * the actual key.  The key itself is not secret information, but we don't
-     * want to make it easy for an attacker to replace the public key with one
-     * of their own and then fake messages from the server.
-     */
-    String base64EncodedPublicKey = "MIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQDMbwTACStPKI2X1k0TeVUcw64ccJKGlYqQcGGF19FLiUBD2NB6xugpZrKISTZYvozeRg98vea0MzfPj9l92sEuPoZq/37cU7+LyviIWRvWdjm6Vz4tkxLQwhy7l87wVcYn/QkMteGfY34u+M/bV6WUA8TnhZiVk0fw301k7xXbwQIDAQAB";
-
     // Some sanity checks to see if the developer (that's you!) really followed the
     // instructions to run this sample (don't put these checks on your app!)
-        /*if (base64EncodedPublicKey.contains("CONSTRUCT_YOUR")) {
+        /*if (BASE64_ENCODED_PUBLIC_KEY.contains("CONSTRUCT_YOUR")) {
             throw new RuntimeException("Please put your app's public key in MainActivity.java. See README.");
         }
         if (getPackageName().startsWith("com.example")) {
@@ -258,10 +305,18 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
 
     // Create the helper, passing it our context and the public key to verify signatures with
     Log.d(TAG, "Creating IAB helper.");
-    mHelper = new IabHelper(this, base64EncodedPublicKey);
+    mHelper = new IabHelper(this, BASE64_ENCODED_PUBLIC_KEY);
 
     // enable debug logging (for a production application, you should set this to false).
     mHelper.enableDebugLogging(true);
+
+    // Show what we knew on the last run right away, while setup and the live query run.
+    mHelper.enableInventorySnapshot(true);
+    mHelper.loadInventorySnapshotAsync(mSnapshotListener);
+
+    // Journal consumptions, so gas consumed right before a crash isn't lost.
+    mHelper.enableConsumeJournal(mConsumeRecoveredListener);
+
     // Start setup. This is asynchronous and the specified listener
     // will be called once setup completes.
     Log.d(TAG, "Starting setup.");
@@ -291,14 +346,17 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
         // Note: registering this listener in an Activity is a bad idea, but is done here
         // because this is a SAMPLE. Regardless, the receiver must be registered after
         // IabHelper is setup, but before first call to getPurchases().
+        mRefreshCoalescer = new InventoryRefreshCoalescer(mHelper, REFRESH_COALESCE_WINDOW_MS,
+          mGotInventoryListener);
         mBroadcastReceiver = new IabBroadcastReceiver(MainActivity.this);
         IntentFilter broadcastFilter = new IntentFilter(IabBroadcastReceiver.ACTION);
         registerReceiver(mBroadcastReceiver, broadcastFilter);
 
-        // IAB is fully set up. Now, let's get an inventory of stuff we own.
+        // IAB is fully set up. Now, let's get an inventory of stuff we own. It's usually
+        // been queried already, since TrivialDriveApplication started on it at launch.
         Log.d(TAG, "Setup successful. Querying inventory.");
         try {
-          mHelper.queryInventoryAsync(mGotInventoryListener);
+          BillingPrewarmer.queryInventoryAsync(mHelper, mGotInventoryListener);
         } catch (IabHelper.IabAsyncInProgressException e) {
           complain("Error querying inventory. Another async operation in progress.");
         }
@@ -330,13 +388,11 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
 
   @Override
   public void receivedBroadcast() {
-    // Received a broadcast notification that the inventory of items has changed
-    Log.d(TAG, "Received broadcast notification. Querying inventory.");
-    try {
-      mHelper.queryInventoryAsync(mGotInventoryListener);
-    } catch (IabHelper.IabAsyncInProgressException e) {
-      complain("Error querying inventory. Another async operation in progress.");
-    }
+    // Received a broadcast notification that the inventory of items has changed.
+    // Several may arrive in a row (e.g. when a promo grants a few items), so let the
+    // coalescer turn them into a single query.
+    Log.d(TAG, "Received broadcast notification. Scheduling inventory refresh.");
+    if (mRefreshCoalescer != null) mRefreshCoalescer.receivedBroadcast();
   }
 
   @NonNull
@@ -414,6 +470,9 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
       if (mBroadcastReceiver != null) {
         unregisterReceiver(mBroadcastReceiver);
       }
+      if (mRefreshCoalescer != null) {
+        mRefreshCoalescer.cancel();
+      }
 
       // very important:
       if (mHelper != null) {
@@ -457,7 +516,10 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
     bld.create().show();
   }
 
-  void saveData() {
+  // Saves the tank on sSaveExecutor, then tells the consume journal that the gas from
+  // consumed is saved, and updates the UI once that's done. Both writes sync to disk, which
+  // we don't want to wait for on the UI thread.
+  void saveData(final List<Purchase> consumed) {
 
     /*
      * WARNING: on a real application, we recommend you save data in a secure way to
@@ -465,10 +527,28 @@ public class MainActivity extends Activity implements IabBroadcastReceiver.IabBr
      * SharedPreferences.
      */
 
-    SharedPreferences.Editor spe = getPreferences(MODE_PRIVATE).edit();
-    spe.putInt("tank", mTank);
-    spe.apply();
-    Log.d(TAG, "Saved data: tank = " + String.valueOf(mTank));
+    final int tank = mTank;
+    final IabHelper helper = mHelper;
+    sSaveExecutor.execute(new Runnable() {
+      public void run() {
+        SharedPreferences.Editor spe = getPreferences(MODE_PRIVATE).edit();
+        spe.putInt("tank", tank);
+        // commit() rather than apply(): the consume journal is told the gas is saved right
+        // after this returns, so it must really be on disk by then.
+        spe.commit();
+        Log.d(TAG, "Saved data: tank = " + String.valueOf(tank));
+        // The gas is saved; the journal no longer needs to remember these consumptions.
+        for (Purchase purchase : consumed) {
+          helper.acknowledgeConsumption(purchase);
+        }
+        runOnUiThread(new Runnable() {
+          public void run() {
+            // if we were destroyed in the meantime, there's nothing to update.
+            if (mHelper != null) updateUi();
+          }
+        });
+      }
+    });
   }
 
   void loadData() {
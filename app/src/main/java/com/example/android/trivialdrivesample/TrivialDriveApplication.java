@@ -0,0 +1,17 @@
+package com.example.android.trivialdrivesample;
+
+import android.app.Application;
+
+import com.example.android.trivialdrivesample.util.BillingPrewarmer;
+
+/**
+ * Starts binding to the billing service and querying the inventory as soon as the process
+ * starts, so MainActivity usually finds the inventory ready when its own setup finishes.
+ */
+public class TrivialDriveApplication extends Application {
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    BillingPrewarmer.prewarm(this, MainActivity.BASE64_ENCODED_PUBLIC_KEY);
+  }
+}
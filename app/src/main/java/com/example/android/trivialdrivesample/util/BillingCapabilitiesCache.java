@@ -0,0 +1,82 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+
+/**
+ * Remembers which billing features the store's service supported last time, so setup
+ * doesn't have to wait for the isBillingSupported() probes on every launch. The answers
+ * are tied to the store app's version code: once the store app is updated (or
+ * reinstalled as another version), the cache misses until the service is probed again.
+ * <p>
+ * Cached answers are a hint, not the truth. {@link BillingConnectionManager} still probes
+ * in the background and corrects the cache when the service disagrees.
+ */
+class BillingCapabilitiesCache {
+    private static final String PREFS_NAME = "iab_capabilities";
+    private static final String KEY_STORE_VERSION = "store_version";
+    private static final String KEY_SUBSCRIPTIONS = "subscriptions";
+    private static final String KEY_SUBSCRIPTION_UPDATE = "subscription_update";
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    /** The capabilities found by a probe. */
+    static class Entry {
+        final boolean mSubscriptionsSupported;
+        final boolean mSubscriptionUpdateSupported;
+
+        Entry(boolean subscriptionsSupported, boolean subscriptionUpdateSupported) {
+            mSubscriptionsSupported = subscriptionsSupported;
+            mSubscriptionUpdateSupported = subscriptionUpdateSupported;
+        }
+
+        boolean sameAs(Entry other) {
+            return other != null
+                    && mSubscriptionsSupported == other.mSubscriptionsSupported
+                    && mSubscriptionUpdateSupported == other.mSubscriptionUpdateSupported;
+        }
+    }
+
+    BillingCapabilitiesCache(Context ctx) {
+        mContext = ctx.getApplicationContext();
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns what was stored for the installed version of the store app, or null if
+     * nothing was, or the store app isn't installed.
+     */
+    Entry load() {
+        long version = storeVersion();
+        if (version < 0 || mPrefs.getLong(KEY_STORE_VERSION, -1) != version) return null;
+        return new Entry(mPrefs.getBoolean(KEY_SUBSCRIPTIONS, false),
+                mPrefs.getBoolean(KEY_SUBSCRIPTION_UPDATE, false));
+    }
+
+    /** Stores the capabilities of a successful probe of the installed store app. */
+    void save(Entry entry) {
+        long version = storeVersion();
+        if (version < 0) return;
+        mPrefs.edit()
+                .putLong(KEY_STORE_VERSION, version)
+                .putBoolean(KEY_SUBSCRIPTIONS, entry.mSubscriptionsSupported)
+                .putBoolean(KEY_SUBSCRIPTION_UPDATE, entry.mSubscriptionUpdateSupported)
+                .apply();
+    }
+
+    void clear() {
+        mPrefs.edit().clear().apply();
+    }
+
+    @SuppressWarnings("deprecation")
+    private long storeVersion() {
+        try {
+            return mContext.getPackageManager()
+                    .getPackageInfo(BillingConnectionManager.BILLING_PACKAGE, 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            return -1;
+        }
+    }
+}
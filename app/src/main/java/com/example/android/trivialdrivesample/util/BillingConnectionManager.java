@@ -0,0 +1,571 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The process-wide connection to the billing service, shared by all {@link IabHelper}s.
+ * The first helper to {@link #acquire} it binds to the service and probes what billing
+ * features it supports; later helpers reuse both the binder and the probed capabilities.
+ * Each helper {@link #release releases} it when it's disposed of, and the last release
+ * unbinds. Probing happens on a background thread; helpers are told the result on the main
+ * thread.
+ * <p>
+ * The probed capabilities are also kept in a {@link BillingCapabilitiesCache}. When it has
+ * an answer for the installed store app, setup finishes as soon as the cache is read (on
+ * the same background thread, since that means disk and package manager calls), and the
+ * probes run afterwards; if they disagree with the cache, the helpers are told the
+ * capabilities changed.
+ * <p>
+ * If the service goes away while bound (for example while the store app is being updated),
+ * the manager rebinds with exponential backoff, and {@link #awaitService} holds billing calls
+ * made meanwhile until it's back.
+ */
+class BillingConnectionManager {
+    private static final String TAG = "IabHelper/Connection";
+
+    static final String BIND_ACTION = "ir.sadad.bami.billing.InAppBillingService.BIND";
+    static final String BILLING_PACKAGE = "ir.sadad.bami.test";
+
+    // Delay before the first attempt to rebind after the service went away; it doubles with
+    // every failed attempt, up to RECONNECT_MAX_DELAY_MS
+    static final long RECONNECT_INITIAL_DELAY_MS = 1000;
+    static final long RECONNECT_MAX_DELAY_MS = 60 * 1000;
+    // How long a billing call made while disconnected waits for the service to come back
+    static final long SERVICE_WAIT_TIMEOUT_MS = 30 * 1000;
+
+    private static final BillingConnectionManager sInstance = new BillingConnectionManager();
+
+    /**
+     * Told, on the main thread, how setting up the shared connection went.
+     */
+    interface SetupCallback {
+        void onSetupFinished(IabResult result);
+
+        /**
+         * Called when a background probe found that the service's capabilities differ from
+         * what setup reported, for example because subscriptions were cached as supported
+         * but no longer are.
+         */
+        void onCapabilitiesChanged();
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mDebugLog = false;
+
+    // All of the following are guarded by this.
+    private Context mContext;
+    private int mRefCount;
+    // Our binding, or null while unbound
+    private ServiceConnection mConnection;
+    private Intent mServiceIntent;
+    // Null while we're disconnected; awaitService() waits on this for it to come back
+    private IInAppBillingService mService;
+    // Have the capabilities below been probed on the current binding?
+    private boolean mProbed;
+    private boolean mProbing;
+    private boolean mSubscriptionsSupported;
+    private boolean mSubscriptionUpdateSupported;
+    // Helpers waiting for setup to finish, and all helpers holding a reference
+    private final List<SetupCallback> mPending = new ArrayList<SetupCallback>();
+    private final List<SetupCallback> mUsers = new ArrayList<SetupCallback>();
+    // Created on first use by a probe; see capabilitiesCache()
+    private BillingCapabilitiesCache mCapabilitiesCache;
+    // Where the probing calls are counted: the metrics of the helper that triggered them
+    private BillingMetrics mProbeMetrics;
+    private Runnable mReconnect;
+    private long mReconnectDelayMs = RECONNECT_INITIAL_DELAY_MS;
+
+    static BillingConnectionManager get() {
+        return sInstance;
+    }
+
+    // Use get(); tests may create their own.
+    BillingConnectionManager() {
+    }
+
+    void setDebugLogging(boolean enable) {
+        mDebugLog = enable;
+    }
+
+    /**
+     * Takes a reference to the connection, binding to the service if nobody else holds one.
+     * The callback is told once the service is bound and probed, right away (but still
+     * asynchronously) if that happened already.
+     *
+     * @param metrics Where to count the probing calls, if this acquire triggers them.
+     */
+    void acquire(Context context, BillingMetrics metrics, final SetupCallback callback) {
+        boolean probeNow = false;
+        synchronized (this) {
+            mRefCount++;
+            mUsers.add(callback);
+            if (mProbed && mService != null) {
+                logDebug("Reusing the billing service connection.");
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSetupFinished(new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK,
+                                "Setup successful."));
+                    }
+                });
+                return;
+            }
+            mPending.add(callback);
+            mProbeMetrics = metrics;
+            if (mConnection != null) {
+                // Bound already; if an earlier probe failed, try again.
+                probeNow = mService != null && !mProbing;
+            } else if (!bind(context.getApplicationContext())) {
+                mPending.remove(callback);
+                mUsers.remove(callback);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSetupFinished(new IabResult(
+                                IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
+                                "Billing service unavailable on device."));
+                    }
+                });
+                return;
+            }
+        }
+        if (probeNow) probeInBackground();
+    }
+
+    /**
+     * Gives back a reference taken by {@link #acquire}, with the same callback; the callback
+     * won't be called after this. The last release unbinds from the service.
+     */
+    void release(SetupCallback callback) {
+        Context context;
+        ServiceConnection connection;
+        synchronized (this) {
+            mPending.remove(callback);
+            mUsers.remove(callback);
+            if (mRefCount == 0 || --mRefCount > 0) return;
+            logDebug("Last user released the billing service, unbinding.");
+            context = mContext;
+            connection = mConnection;
+            mConnection = null;
+            mServiceIntent = null;
+            mProbed = false;
+            mProbeMetrics = null;
+            mReconnectDelayMs = RECONNECT_INITIAL_DELAY_MS;
+            if (mReconnect != null) mMainHandler.removeCallbacks(mReconnect);
+            setService(null);
+        }
+        if (connection != null) unbind(context, connection);
+    }
+
+    synchronized boolean subscriptionsSupported() {
+        return mSubscriptionsSupported;
+    }
+
+    synchronized boolean subscriptionUpdateSupported() {
+        return mSubscriptionUpdateSupported;
+    }
+
+    /**
+     * Returns the billing service, waiting up to {@link #SERVICE_WAIT_TIMEOUT_MS} for it to
+     * reconnect if it went away after setup. Calls made meanwhile are held here and go
+     * through once it's back. The main thread never waits.
+     *
+     * @throws RemoteException if the service didn't come back in time.
+     */
+    synchronized IInAppBillingService awaitService() throws RemoteException {
+        if (mService != null) return mService;
+        if (mProbed && mConnection != null && Looper.myLooper() != Looper.getMainLooper()) {
+            logDebug("Billing service is disconnected, waiting for it to reconnect.");
+            long deadline = System.currentTimeMillis() + SERVICE_WAIT_TIMEOUT_MS;
+            long left;
+            while (mService == null && mConnection != null
+                    && (left = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (mService != null) return mService;
+        }
+        throw new RemoteException("Billing service is not connected.");
+    }
+
+    // Called with the lock held.
+    private boolean bind(Context context) {
+        Intent serviceIntent = new Intent(BIND_ACTION);
+        serviceIntent.setPackage(BILLING_PACKAGE);
+        if (!isServiceAvailable(context, serviceIntent)) {
+            logDebug("No service handles " + BIND_ACTION);
+            return false;
+        }
+
+        logDebug("Binding to billing service.");
+        mContext = context;
+        mServiceIntent = serviceIntent;
+        mConnection = new Connection();
+        try {
+            if (context.bindService(serviceIntent, mConnection, Context.BIND_AUTO_CREATE)) {
+                return true;
+            }
+        } catch (SecurityException e) {
+            Logger.error(TAG, "Can't bind to billing service.", e);
+        }
+        mConnection = null;
+        mServiceIntent = null;
+        return false;
+    }
+
+    // Is there a billing service to bind to? Overridden by tests.
+    boolean isServiceAvailable(Context context, Intent serviceIntent) {
+        List<ResolveInfo> intentServices = context.getPackageManager()
+                .queryIntentServices(serviceIntent, 0);
+        return intentServices != null && !intentServices.isEmpty();
+    }
+
+    private void unbind(Context context, ServiceConnection connection) {
+        try {
+            context.unbindService(connection);
+        } catch (IllegalArgumentException e) {
+            // Already unbound
+        }
+    }
+
+    // Called with the lock held.
+    private void setService(IInAppBillingService service) {
+        mService = service;
+        if (service != null) {
+            mReconnectDelayMs = RECONNECT_INITIAL_DELAY_MS;
+            if (mReconnect != null) mMainHandler.removeCallbacks(mReconnect);
+        }
+        notifyAll();
+    }
+
+    private class Connection implements ServiceConnection {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            boolean probeNow;
+            List<SetupCallback> callbacks = null;
+            synchronized (BillingConnectionManager.this) {
+                if (mConnection != this) return; // released meanwhile
+                setService(IInAppBillingService.Stub.asInterface(binder));
+                probeNow = !mProbed && !mProbing;
+                if (mProbed) {
+                    // A reconnect: keep the capabilities we probed before, and finish the setup
+                    // of helpers that acquired while we were disconnected.
+                    logDebug("Billing service reconnected.");
+                    callbacks = new ArrayList<SetupCallback>(mPending);
+                    mPending.clear();
+                } else {
+                    logDebug("Billing service connected.");
+                }
+            }
+            if (probeNow) probeInBackground();
+            if (callbacks == null) return;
+            IabResult result = new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Setup successful.");
+            for (SetupCallback callback : callbacks) {
+                callback.onSetupFinished(result);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            logDebug("Billing service disconnected.");
+            synchronized (BillingConnectionManager.this) {
+                if (mConnection != this) return;
+                setService(null);
+            }
+            // The binding normally brings the service back by itself; rebind if it doesn't.
+            scheduleReconnect();
+        }
+
+        @Override
+        public void onBindingDied(ComponentName name) {
+            Logger.warning(TAG, "Billing service binding died (was the store app updated?).");
+            synchronized (BillingConnectionManager.this) {
+                if (mConnection != this) return;
+                setService(null);
+            }
+            scheduleReconnect();
+        }
+    }
+
+    // What a probe found: whether setup succeeded and, if so, the capabilities.
+    private static final class Probe {
+        final IabResult mResult;
+        final BillingCapabilitiesCache.Entry mCapabilities;
+
+        Probe(IabResult result, BillingCapabilitiesCache.Entry capabilities) {
+            mResult = result;
+            mCapabilities = capabilities;
+        }
+    }
+
+    // The probes are binder calls, so they never run on the main thread.
+    private void probeInBackground() {
+        BillingExecutors.ioPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                probe();
+            }
+        });
+    }
+
+    // Finds out which billing features the service supports, from the cache if it has an
+    // answer and from the service otherwise, then tells the pending helpers on the main thread.
+    private void probe() {
+        IInAppBillingService service;
+        BillingMetrics metrics;
+        String packageName;
+        synchronized (this) {
+            if (mService == null || mProbed || mProbing) return;
+            mProbing = true;
+            service = mService;
+            metrics = mProbeMetrics;
+            packageName = mContext.getPackageName();
+        }
+
+        BillingCapabilitiesCache cache = capabilitiesCache();
+        BillingCapabilitiesCache.Entry cached = cache.load();
+        Probe probe = cached != null
+                ? new Probe(new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Setup successful."), cached)
+                : runProbe(service, metrics, packageName);
+
+        List<SetupCallback> pending = null;
+        boolean probeAgain = false;
+        synchronized (this) {
+            mProbing = false;
+            if (mService != service) {
+                // Disconnected or released while probing. A connection that came up meanwhile
+                // skipped its probe because this one was running, so probe it now; otherwise
+                // the next connection will.
+                if (mConnection == null) mPending.clear();
+                probeAgain = mService != null && !mProbed;
+            } else {
+                mProbed = probe.mResult.isSuccess();
+                if (mProbed) apply(probe.mCapabilities);
+                pending = new ArrayList<SetupCallback>(mPending);
+                mPending.clear();
+            }
+        }
+        if (pending == null) {
+            if (probeAgain) probeInBackground();
+            return;
+        }
+        final List<SetupCallback> callbacks = pending;
+        if (cached != null) {
+            logDebug("Using cached billing capabilities; checking them in the background.");
+        } else if (probe.mResult.isSuccess()) {
+            cache.save(probe.mCapabilities);
+        }
+        final IabResult result = probe.mResult;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (SetupCallback callback : callbacks) {
+                    callback.onSetupFinished(result);
+                }
+            }
+        });
+        if (cached != null) revalidate();
+    }
+
+    // The cache reads SharedPreferences, so it's only created (and used) off the main thread.
+    private BillingCapabilitiesCache capabilitiesCache() {
+        Context context;
+        synchronized (this) {
+            if (mCapabilitiesCache != null) return mCapabilitiesCache;
+            context = mContext;
+        }
+        BillingCapabilitiesCache cache = new BillingCapabilitiesCache(context);
+        synchronized (this) {
+            if (mCapabilitiesCache == null) mCapabilitiesCache = cache;
+            return mCapabilitiesCache;
+        }
+    }
+
+    // Probes a service whose setup already succeeded from cached capabilities, and corrects
+    // the cache (and the helpers) if the service disagrees.
+    private void revalidate() {
+        IInAppBillingService service;
+        BillingMetrics metrics;
+        String packageName;
+        synchronized (this) {
+            if (mService == null) return;
+            service = mService;
+            metrics = mProbeMetrics;
+            packageName = mContext.getPackageName();
+        }
+
+        Probe probe = runProbe(service, metrics, packageName);
+        if (probe.mResult.getResponse() == IabHelper.IABHELPER_REMOTE_EXCEPTION) {
+            return; // Nothing learned; keep what we have.
+        }
+
+        BillingCapabilitiesCache.Entry live = probe.mCapabilities;
+        if (probe.mResult.isFailure()) {
+            // Billing itself is gone; the calls will fail on their own, but stop
+            // advertising subscriptions and don't trust the cache next time.
+            Logger.warning(TAG, "Billing no longer supported: %s", probe.mResult);
+            capabilitiesCache().clear();
+            live = new BillingCapabilitiesCache.Entry(false, false);
+        } else {
+            capabilitiesCache().save(live);
+        }
+
+        final List<SetupCallback> users;
+        synchronized (this) {
+            if (mService != service) return;
+            if (live.sameAs(current())) return;
+            Logger.warning(TAG, "Cached billing capabilities were out of date, updating them.");
+            apply(live);
+            users = new ArrayList<SetupCallback>(mUsers);
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (SetupCallback user : users) {
+                    user.onCapabilitiesChanged();
+                }
+            }
+        });
+    }
+
+    // Called with the lock held.
+    private void apply(BillingCapabilitiesCache.Entry capabilities) {
+        mSubscriptionsSupported = capabilities.mSubscriptionsSupported;
+        mSubscriptionUpdateSupported = capabilities.mSubscriptionUpdateSupported;
+    }
+
+    // Called with the lock held.
+    private BillingCapabilitiesCache.Entry current() {
+        return new BillingCapabilitiesCache.Entry(mSubscriptionsSupported, mSubscriptionUpdateSupported);
+    }
+
+    private Probe runProbe(IInAppBillingService service, BillingMetrics metrics, String packageName) {
+        boolean subscriptions = false;
+        boolean subscriptionUpdate = false;
+        try {
+            logDebug("Checking for in-app billing 3 support.");
+
+            // check for in-app billing v3 support
+            int response = isBillingSupported(service, metrics, 3, packageName, IabHelper.ITEM_TYPE_INAPP);
+            if (response != IabHelper.BILLING_RESPONSE_RESULT_OK) {
+                // if in-app purchases aren't supported, neither are subscriptions
+                return new Probe(new IabResult(response, "Error checking for billing v3 support."), null);
+            }
+            logDebug("In-app billing version 3 supported for " + packageName);
+
+            // Check for v5 subscriptions support. This is needed for
+            // getBuyIntentToReplaceSku which allows for subscription update
+            response = isBillingSupported(service, metrics, 5, packageName, IabHelper.ITEM_TYPE_SUBS);
+            if (response == IabHelper.BILLING_RESPONSE_RESULT_OK) {
+                logDebug("Subscription re-signup AVAILABLE.");
+                subscriptionUpdate = true;
+                subscriptions = true;
+            } else {
+                logDebug("Subscription re-signup not available.");
+                // check for v3 subscriptions support
+                response = isBillingSupported(service, metrics, 3, packageName, IabHelper.ITEM_TYPE_SUBS);
+                if (response == IabHelper.BILLING_RESPONSE_RESULT_OK) {
+                    logDebug("Subscriptions AVAILABLE.");
+                    subscriptions = true;
+                } else {
+                    logDebug("Subscriptions NOT AVAILABLE. Response: " + response);
+                }
+            }
+        } catch (RemoteException e) {
+            Logger.error(TAG, "RemoteException while setting up in-app billing.", e);
+            return new Probe(new IabResult(IabHelper.IABHELPER_REMOTE_EXCEPTION,
+                    "RemoteException while setting up in-app billing."), null);
+        }
+        return new Probe(new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Setup successful."),
+                new BillingCapabilitiesCache.Entry(subscriptions, subscriptionUpdate));
+    }
+
+    private static int isBillingSupported(IInAppBillingService service, BillingMetrics metrics,
+            int apiVersion, String packageName, String type) throws RemoteException {
+        long start = BillingMetrics.start();
+        try {
+            int response = service.isBillingSupported(apiVersion, packageName, type);
+            if (metrics != null) metrics.record(BillingMetrics.OP_IS_BILLING_SUPPORTED, start, response);
+            return response;
+        } catch (RemoteException e) {
+            if (metrics != null) {
+                metrics.record(BillingMetrics.OP_IS_BILLING_SUPPORTED, start,
+                        IabHelper.IABHELPER_REMOTE_EXCEPTION);
+            }
+            throw e;
+        }
+    }
+
+    // Rebinds to the service after mReconnectDelayMs, unless it comes back by itself first.
+    private void scheduleReconnect() {
+        long delay;
+        synchronized (this) {
+            if (mConnection == null) return;
+            if (mReconnect == null) {
+                mReconnect = new Runnable() {
+                    @Override
+                    public void run() {
+                        reconnect();
+                    }
+                };
+            }
+            delay = mReconnectDelayMs;
+            mReconnectDelayMs = Math.min(mReconnectDelayMs * 2, RECONNECT_MAX_DELAY_MS);
+            mMainHandler.removeCallbacks(mReconnect);
+            mMainHandler.postDelayed(mReconnect, delay);
+        }
+        if (mDebugLog) logDebug("Rebinding to billing service in " + delay + " ms.");
+    }
+
+    private void reconnect() {
+        Context context;
+        ServiceConnection connection;
+        Intent intent;
+        synchronized (this) {
+            if (mConnection == null || mService != null) return;
+            context = mContext;
+            connection = mConnection;
+            intent = mServiceIntent;
+        }
+        logDebug("Rebinding to billing service.");
+        unbind(context, connection);
+        boolean bound;
+        try {
+            bound = context.bindService(intent, connection, Context.BIND_AUTO_CREATE);
+        } catch (SecurityException e) {
+            Logger.warning(TAG, "Can't rebind to billing service: %s", e);
+            bound = false;
+        }
+        synchronized (this) {
+            if (mConnection != connection) {
+                // Released while we were rebinding.
+                if (bound) unbind(context, connection);
+                return;
+            }
+        }
+        // Try again later if the bind failed or doesn't connect in time.
+        if (!bound) Logger.warning(TAG, "Rebinding to billing service failed.");
+        scheduleReconnect();
+    }
+
+    private void logDebug(String msg) {
+        if (mDebugLog) Logger.debug(TAG, msg);
+    }
+}
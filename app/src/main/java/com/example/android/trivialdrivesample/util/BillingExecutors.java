@@ -0,0 +1,157 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared thread pools used by the in-app billing helpers, and a small helper for
+ * spreading indexed work over them.
+ */
+final class BillingExecutors {
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    // Binder calls are cheap for us but not for the billing service; keep the fan-out small.
+    static final int IO_POOL_SIZE = 4;
+
+    private static ThreadPoolExecutor sComputePool;
+    private static ThreadPoolExecutor sPipelineExecutor;
+    private static ThreadPoolExecutor sIoPool;
+
+    private BillingExecutors() {
+    }
+
+    /**
+     * Returns the number of processors available to the process.
+     */
+    static int cpuCount() {
+        return CPU_COUNT;
+    }
+
+    /**
+     * Returns a pool for CPU-bound work (e.g. signature verification), sized to the
+     * number of cores. Its threads time out when idle.
+     */
+    static synchronized Executor computePool() {
+        if (sComputePool == null) {
+            sComputePool = newPool("IabCompute", CPU_COUNT);
+        }
+        return sComputePool;
+    }
+
+    /**
+     * Returns a single-threaded executor for processing query results in the
+     * background while the next request is in flight. Tasks run one at a time,
+     * in submission order.
+     */
+    static synchronized ExecutorService pipelineExecutor() {
+        if (sPipelineExecutor == null) {
+            sPipelineExecutor = newPool("IabPipeline", 1);
+        }
+        return sPipelineExecutor;
+    }
+
+    /**
+     * Returns a small bounded pool for blocking calls to the billing service. Work
+     * submitted here from a billing thread should be run with {@link #forEachIndex}
+     * or a task the caller can run itself, so that it never waits on a full pool.
+     */
+    static synchronized ExecutorService ioPool() {
+        if (sIoPool == null) {
+            sIoPool = newPool("IabIo", IO_POOL_SIZE);
+        }
+        return sIoPool;
+    }
+
+    static ThreadPoolExecutor newPool(String name, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                newThreadFactory(name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + " #" + mCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Work over a range of indices, see {@link #forEachIndex}.
+     */
+    interface IndexedTask {
+        /**
+         * Processes one index. Implementations are responsible for catching and
+         * recording their own errors.
+         *
+         * @return false to stop handing out further indices.
+         */
+        boolean run(int index);
+    }
+
+    /**
+     * Runs task for every index in [0, count), using up to parallelism threads:
+     * the calling thread plus helpers submitted to executor. Indices are handed out
+     * in increasing order. The calling thread takes part in the work, so this never
+     * deadlocks even if executor is saturated (or is the one we are running on).
+     * Returns once every index that was handed out has been processed.
+     */
+    static void forEachIndex(Executor executor, final int count, int parallelism,
+                             final IndexedTask task) {
+        if (count <= 0) return;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        final Object lock = new Object();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < count) {
+                    boolean keepGoing = false;
+                    try {
+                        keepGoing = task.run(i);
+                    } finally {
+                        // After a stop (or a failure) hand out no more work; indices
+                        // that were never handed out count as done.
+                        int skipped = keepGoing ? 0 : Math.max(0, count - next.getAndSet(count));
+                        synchronized (lock) {
+                            done.addAndGet(1 + skipped);
+                            lock.notifyAll();
+                        }
+                    }
+                    if (!keepGoing) return;
+                }
+            }
+        };
+
+        int helpers = Math.min(parallelism, count) - 1;
+        for (int h = 0; h < helpers; h++) {
+            executor.execute(worker);
+        }
+        worker.run();
+
+        synchronized (lock) {
+            boolean interrupted = false;
+            while (done.get() < count) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and response code counters for the calls an {@link IabHelper} makes
+ * to the billing service, plus page and verification counts for purchase queries.
+ * Recording is a handful of atomic increments, so it stays on all the time; poll it with
+ * {@link IabHelper#getMetrics}.
+ * <p>
+ * Latencies go into power-of-two buckets: bucket 0 counts calls under 1ms, bucket i
+ * counts calls that took [2^(i-1), 2^i) ms, and the last bucket is open-ended.
+ */
+public class BillingMetrics {
+    public static final int OP_IS_BILLING_SUPPORTED = 0;
+    public static final int OP_GET_PURCHASES = 1;
+    public static final int OP_GET_SKU_DETAILS = 2;
+    public static final int OP_GET_BUY_INTENT = 3;
+    public static final int OP_CONSUME_PURCHASE = 4;
+    public static final int OP_COUNT = 5;
+    private static final String[] OP_NAMES = {
+            "isBillingSupported", "getPurchases", "getSkuDetails", "getBuyIntent", "consumePurchase"
+    };
+
+    public static final int LATENCY_BUCKETS = 16;
+
+    // Response code slots: BILLING_RESPONSE_RESULT_* (0..8), then IABHELPER_* (-1001..-1011),
+    // then one for anything else.
+    private static final int BILLING_CODES = 9;
+    private static final int HELPER_CODES = 11;
+    private static final int CODE_SLOTS = BILLING_CODES + HELPER_CODES + 1;
+
+    private final AtomicLongArray mLatency = new AtomicLongArray(OP_COUNT * LATENCY_BUCKETS);
+    private final AtomicLongArray mTotalMicros = new AtomicLongArray(OP_COUNT);
+    private final AtomicLongArray mMaxMicros = new AtomicLongArray(OP_COUNT);
+    private final AtomicLongArray mResponses = new AtomicLongArray(OP_COUNT * CODE_SLOTS);
+    private final AtomicLong mPurchaseQueries = new AtomicLong();
+    private final AtomicLong mPurchasePages = new AtomicLong();
+    private final AtomicLong mMaxPagesPerQuery = new AtomicLong();
+    private final AtomicLong mVerificationFailures = new AtomicLong();
+
+    BillingMetrics() {
+    }
+
+    /** Returns the start time to pass to {@link #record}. */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /** Records one call of op that started at startNanos and returned response. */
+    void record(int op, long startNanos, int response) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        mLatency.incrementAndGet(op * LATENCY_BUCKETS + bucketOf(micros / 1000));
+        mTotalMicros.addAndGet(op, micros);
+        long max;
+        while (micros > (max = mMaxMicros.get(op)) && !mMaxMicros.compareAndSet(op, max, micros)) {
+            // Retry until we either win or someone else recorded a larger value.
+        }
+        mResponses.incrementAndGet(op * CODE_SLOTS + codeSlot(response));
+    }
+
+    /** Records a finished getPurchases() query that took the given number of pages. */
+    void recordPurchaseQuery(int pages) {
+        mPurchaseQueries.incrementAndGet();
+        mPurchasePages.addAndGet(pages);
+        long max;
+        while (pages > (max = mMaxPagesPerQuery.get()) && !mMaxPagesPerQuery.compareAndSet(max, pages)) {
+            // As above.
+        }
+    }
+
+    /** Records purchases whose signature didn't verify. */
+    void recordVerificationFailures(int count) {
+        if (count > 0) mVerificationFailures.addAndGet(count);
+    }
+
+    /** Takes a consistent-enough copy of the counters; they keep changing while it's taken. */
+    Snapshot snapshot() {
+        long[] latency = new long[mLatency.length()];
+        for (int i = 0; i < latency.length; i++) latency[i] = mLatency.get(i);
+        long[] totalMicros = new long[OP_COUNT];
+        long[] maxMicros = new long[OP_COUNT];
+        for (int op = 0; op < OP_COUNT; op++) {
+            totalMicros[op] = mTotalMicros.get(op);
+            maxMicros[op] = mMaxMicros.get(op);
+        }
+        long[] responses = new long[mResponses.length()];
+        for (int i = 0; i < responses.length; i++) responses[i] = mResponses.get(i);
+        return new Snapshot(latency, totalMicros, maxMicros, responses, mPurchaseQueries.get(),
+                mPurchasePages.get(), mMaxPagesPerQuery.get(), mVerificationFailures.get());
+    }
+
+    static int bucketOf(long millis) {
+        if (millis <= 0) return 0;
+        return Math.min(64 - Long.numberOfLeadingZeros(millis), LATENCY_BUCKETS - 1);
+    }
+
+    static int codeSlot(int response) {
+        if (response >= 0 && response < BILLING_CODES) return response;
+        int helper = IabHelper.IABHELPER_ERROR_BASE - response;
+        if (helper >= 1 && helper <= HELPER_CODES) return BILLING_CODES + helper - 1;
+        return CODE_SLOTS - 1;
+    }
+
+    /**
+     * A point-in-time copy of an {@link IabHelper}'s billing metrics.
+     */
+    public static class Snapshot {
+        private final long[] mLatency;
+        private final long[] mTotalMicros;
+        private final long[] mMaxMicros;
+        private final long[] mResponses;
+        private final long mPurchaseQueries;
+        private final long mPurchasePages;
+        private final long mMaxPagesPerQuery;
+        private final long mVerificationFailures;
+
+        Snapshot(long[] latency, long[] totalMicros, long[] maxMicros, long[] responses,
+                 long purchaseQueries, long purchasePages, long maxPagesPerQuery,
+                 long verificationFailures) {
+            mLatency = latency;
+            mTotalMicros = totalMicros;
+            mMaxMicros = maxMicros;
+            mResponses = responses;
+            mPurchaseQueries = purchaseQueries;
+            mPurchasePages = purchasePages;
+            mMaxPagesPerQuery = maxPagesPerQuery;
+            mVerificationFailures = verificationFailures;
+        }
+
+        /** Calls made of op, one of the OP_* constants. */
+        public long getCallCount(int op) {
+            long count = 0;
+            for (int b = 0; b < LATENCY_BUCKETS; b++) count += mLatency[op * LATENCY_BUCKETS + b];
+            return count;
+        }
+
+        /** The latency histogram of op; see the class comment for the bucket bounds. */
+        public long[] getLatencyHistogram(int op) {
+            long[] histogram = new long[LATENCY_BUCKETS];
+            System.arraycopy(mLatency, op * LATENCY_BUCKETS, histogram, 0, LATENCY_BUCKETS);
+            return histogram;
+        }
+
+        public long getAverageMicros(int op) {
+            long count = getCallCount(op);
+            return count == 0 ? 0 : mTotalMicros[op] / count;
+        }
+
+        public long getMaxMicros(int op) {
+            return mMaxMicros[op];
+        }
+
+        /**
+         * Estimates a latency percentile of op (e.g. 0.95) from its histogram: the upper
+         * bound, in ms, of the bucket the percentile falls into. Returns 0 if op wasn't called.
+         */
+        public long getPercentileMillis(int op, double percentile) {
+            long count = getCallCount(op);
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int b = 0; b < LATENCY_BUCKETS; b++) {
+                seen += mLatency[op * LATENCY_BUCKETS + b];
+                if (seen >= rank) return b == LATENCY_BUCKETS - 1 ? mMaxMicros[op] / 1000 : 1L << b;
+            }
+            return mMaxMicros[op] / 1000;
+        }
+
+        /**
+         * How many calls of op returned response, a BILLING_RESPONSE_RESULT_* or
+         * IABHELPER_* code from {@link IabHelper}. Codes outside those ranges share a count.
+         */
+        public long getResponseCount(int op, int response) {
+            return mResponses[op * CODE_SLOTS + codeSlot(response)];
+        }
+
+        /** Calls of op that didn't return BILLING_RESPONSE_RESULT_OK. */
+        public long getErrorCount(int op) {
+            long errors = 0;
+            for (int slot = 1; slot < CODE_SLOTS; slot++) errors += mResponses[op * CODE_SLOTS + slot];
+            return errors;
+        }
+
+        /** Purchase queries (one per item type per inventory query) that finished. */
+        public long getPurchaseQueries() { return mPurchaseQueries; }
+        /** getPurchases() pages fetched by those queries. */
+        public long getPurchasePages() { return mPurchasePages; }
+        public long getMaxPagesPerQuery() { return mMaxPagesPerQuery; }
+        /** Purchases dropped because their signature didn't verify. */
+        public long getVerificationFailures() { return mVerificationFailures; }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("BillingMetrics{");
+            for (int op = 0; op < OP_COUNT; op++) {
+                long count = getCallCount(op);
+                if (count == 0) continue;
+                sb.append(OP_NAMES[op]).append(": n=").append(count)
+                        .append(", errors=").append(getErrorCount(op))
+                        .append(", avg=").append(getAverageMicros(op) / 1000).append("ms")
+                        .append(", p95<=").append(getPercentileMillis(op, 0.95)).append("ms")
+                        .append(", max=").append(mMaxMicros[op] / 1000).append("ms; ");
+            }
+            return sb.append("queries=").append(mPurchaseQueries)
+                    .append(", pages=").append(mPurchasePages)
+                    .append(", verificationFailures=").append(mVerificationFailures)
+                    .append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Starts binding to the billing service and querying the inventory as early as possible,
+ * from {@link android.app.Application#onCreate}, instead of waiting for the first Activity
+ * to inflate its layout and set up its own {@link IabHelper}. Since helpers share one
+ * connection (see {@link BillingConnectionManager}), the Activity's helper then finishes
+ * setup without binding again, and can pick up the prewarmed inventory with
+ * {@link #queryInventoryAsync} instead of querying the service itself. The inventory still
+ * goes through the Activity's helper, after its consume journal replay, so snapshots,
+ * deltas and recovered consumptions work as if that helper had queried it.
+ * <p>
+ * The prewarmed inventory is handed out once, and only while it's fresh; otherwise the
+ * Activity's helper queries as usual. All methods must be called on the main thread.
+ */
+public final class BillingPrewarmer {
+    private static final String TAG = "IabHelper/Prewarm";
+
+    // How long a prewarmed inventory may be handed out after it arrived. After that it's
+    // dropped, and the connection held for it released.
+    static final long MAX_AGE_MS = 30 * 1000;
+
+    private static IabHelper sHelper;
+    private static boolean sStarted;
+    private static long sStartTime;
+    private static long sReadyTime;
+    private static IabResult sResult;
+    private static Inventory sInventory;
+    // Waiting for the prewarmed inventory, and the helper to fall back on if it fails
+    private static IabHelper.QueryInventoryFinishedListener sWaitingListener;
+    private static IabHelper sWaitingHelper;
+    private static Handler sHandler;
+
+    private static final Runnable sExpire = new Runnable() {
+        @Override
+        public void run() {
+            Logger.debug(TAG, "Prewarmed inventory was not used, dropping it.");
+            release();
+        }
+    };
+
+    private BillingPrewarmer() {
+    }
+
+    /**
+     * Starts setting up billing and querying the inventory in the background. Only the
+     * first call in a process does anything.
+     *
+     * @param base64PublicKey As for {@link IabHelper#IabHelper}.
+     */
+    public static void prewarm(Context context, String base64PublicKey) {
+        if (sStarted) return;
+        sStarted = true;
+        sStartTime = SystemClock.elapsedRealtime();
+        sHandler = new Handler(Looper.getMainLooper());
+
+        final IabHelper helper = new IabHelper(context, base64PublicKey);
+        sHelper = helper;
+        helper.startSetup(new IabHelper.OnIabSetupFinishedListener() {
+            @Override
+            public void onIabSetupFinished(IabResult result) {
+                if (sHelper != helper) return;
+                if (result.isFailure()) {
+                    finish(result, null);
+                    return;
+                }
+                try {
+                    helper.queryInventoryAsync(new IabHelper.QueryInventoryFinishedListener() {
+                        @Override
+                        public void onQueryInventoryFinished(IabResult result, Inventory inventory) {
+                            if (sHelper == helper) finish(result, inventory);
+                        }
+                    });
+                } catch (IabHelper.IabAsyncInProgressException e) {
+                    finish(new IabResult(IabHelper.IABHELPER_UNKNOWN_ERROR, e.getMessage()), null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delivers the prewarmed inventory to listener if there is one (waiting for it if the
+     * query is still running), or else queries it with helper, like
+     * {@link IabHelper#queryInventoryAsync(IabHelper.QueryInventoryFinishedListener)}.
+     * Call it once helper's setup has finished.
+     */
+    public static void queryInventoryAsync(IabHelper helper,
+            IabHelper.QueryInventoryFinishedListener listener)
+            throws IabHelper.IabAsyncInProgressException {
+        if (sHelper == null || sWaitingListener != null) {
+            // Never prewarmed, already used up, or expired.
+            helper.queryInventoryAsync(listener);
+            return;
+        }
+        if (sResult == null) {
+            Logger.debug(TAG, "Waiting for the prewarmed inventory.");
+            sWaitingListener = listener;
+            sWaitingHelper = helper;
+            return;
+        }
+        deliver(helper, listener);
+    }
+
+    private static void finish(IabResult result, Inventory inventory) {
+        sResult = result;
+        sInventory = inventory;
+        sReadyTime = SystemClock.elapsedRealtime();
+        Logger.debug(TAG, "Prewarmed inventory ready %d ms after prewarm: %s",
+                sReadyTime - sStartTime, result);
+
+        IabHelper.QueryInventoryFinishedListener listener = sWaitingListener;
+        if (listener == null) {
+            // Nobody's waiting yet. A failure isn't worth keeping: whoever asks next queries
+            // (or sets up) again anyway.
+            if (result.isFailure()) {
+                release();
+            } else {
+                sHandler.postDelayed(sExpire, MAX_AGE_MS);
+            }
+            return;
+        }
+        IabHelper helper = sWaitingHelper;
+        sWaitingListener = null;
+        sWaitingHelper = null;
+        if (helper.mDisposed) {
+            // Its Activity went away while we were waiting.
+            release();
+            return;
+        }
+        try {
+            deliver(helper, listener);
+        } catch (IabHelper.IabAsyncInProgressException e) {
+            listener.onQueryInventoryFinished(new IabResult(IabHelper.IABHELPER_UNKNOWN_ERROR,
+                    "Error querying inventory. Another async operation in progress."), null);
+        }
+    }
+
+    private static void deliver(IabHelper helper, IabHelper.QueryInventoryFinishedListener listener)
+            throws IabHelper.IabAsyncInProgressException {
+        IabResult result = sResult;
+        Inventory inventory = sInventory;
+        boolean fresh = SystemClock.elapsedRealtime() - sReadyTime <= MAX_AGE_MS;
+        // The caller's helper holds the connection by now, so ours can go.
+        release();
+        if (result.isFailure() || !fresh) {
+            helper.queryInventoryAsync(listener);
+            return;
+        }
+        Logger.debug(TAG, "Using prewarmed inventory, %d ms after prewarm.",
+                SystemClock.elapsedRealtime() - sStartTime);
+        helper.adoptInventoryAsync(inventory, listener);
+    }
+
+    private static void release() {
+        sHandler.removeCallbacks(sExpire);
+        if (sHelper != null) sHelper.disposeWhenFinished();
+        sHelper = null;
+        sResult = null;
+        sInventory = null;
+    }
+}
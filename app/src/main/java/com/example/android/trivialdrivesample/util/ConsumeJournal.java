@@ -0,0 +1,290 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only record of consumptions, so that a crash between consuming a purchase and
+ * saving its effects can be recovered from locally at the next setup.
+ * <p>
+ * Every consumption goes through up to three states, each appended to the journal as one
+ * line of JSON and synced to disk before the call returns:
+ * <ul>
+ * <li>intent: we are about to ask the billing service to consume the purchase;</li>
+ * <li>consumed: the service has consumed it, but the app may not have applied it yet;</li>
+ * <li>acknowledged: the app has durably applied it; the entry is closed.</li>
+ * </ul>
+ * An attempt that fails is recorded as failed, which closes the entry too, unless the
+ * purchase was already consumed: a consumed entry is only closed by the app's
+ * acknowledgement, so a retried or duplicate consume can never lose it.
+ * Entries left open by a crash are returned by {@link #loadPending}; see
+ * {@link IabHelper#enableConsumeJournal}. Unreadable lines, such as one torn by a crash
+ * during an append, are skipped.
+ */
+class ConsumeJournal {
+    private static final String TAG = "IABUtil/ConsumeJournal";
+    private static final String FILE_NAME = "iab_consume.journal";
+    // Rewrite the file once it has this many closed entries in it
+    static final int COMPACT_THRESHOLD = 64;
+
+    static final String STATE_INTENT = "I";
+    static final String STATE_CONSUMED = "C";
+    static final String STATE_ACKNOWLEDGED = "A";
+    static final String STATE_FAILED = "F";
+
+    /**
+     * An open journal entry.
+     */
+    static class Entry {
+        final Purchase mPurchase;
+        final String mState;
+
+        Entry(Purchase purchase, String state) {
+            mPurchase = purchase;
+            mState = state;
+        }
+
+        boolean isConsumed() {
+            return STATE_CONSUMED.equals(mState);
+        }
+    }
+
+    private final File mFile;
+    private final File mTempFile;
+    private int mClosedEntries;
+    // The open entries as of the last record, or null until stateOf() first needs them
+    private Map<String, Entry> mOpen;
+    // Have we made sure our appends start on a line of their own?
+    private boolean mTailChecked;
+
+    ConsumeJournal(Context ctx) {
+        this(new File(ctx.getFilesDir(), FILE_NAME));
+    }
+
+    ConsumeJournal(File file) {
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * Records that purchase is about to be consumed. The whole purchase is kept, so it can
+     * be consumed (and handed to the app) again after a crash.
+     */
+    synchronized void recordIntent(Purchase purchase) throws IOException {
+        try {
+            append(intentRecord(purchase));
+        } catch (JSONException e) {
+            throw new IOException("Could not encode journal entry: " + e.getMessage());
+        }
+        if (mOpen != null) apply(mOpen, STATE_INTENT, purchase.getToken(), purchase);
+    }
+
+    /** Records that the purchase with this token has been consumed. */
+    synchronized void recordConsumed(String token) throws IOException {
+        appendState(STATE_CONSUMED, token);
+    }
+
+    /** Closes the entry for token: the app has applied the consumption. */
+    synchronized void recordAcknowledged(String token) throws IOException {
+        appendState(STATE_ACKNOWLEDGED, token);
+        closed();
+    }
+
+    /**
+     * Records that an attempt to consume token failed. This closes its entry, unless the
+     * purchase was consumed by an earlier attempt.
+     */
+    synchronized void recordFailed(String token) throws IOException {
+        appendState(STATE_FAILED, token);
+        closed();
+    }
+
+    /**
+     * Returns the state of token's open entry (one of the STATE_ constants), or null if it
+     * has none.
+     */
+    synchronized String stateOf(String token) {
+        if (mOpen == null) mOpen = readOpenEntries();
+        Entry entry = mOpen.get(token);
+        return entry != null ? entry.mState : null;
+    }
+
+    private void closed() throws IOException {
+        if (++mClosedEntries >= COMPACT_THRESHOLD) {
+            compact(readOpenEntries());
+        }
+    }
+
+    /**
+     * Returns the entries that are still open, oldest first, and drops closed entries
+     * from the file.
+     */
+    synchronized List<Entry> loadPending() {
+        Map<String, Entry> open = readOpenEntries();
+        mOpen = new LinkedHashMap<String, Entry>(open);
+        try {
+            compact(open);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not compact consume journal: " + e.getMessage());
+        }
+        return new ArrayList<Entry>(open.values());
+    }
+
+    private void appendState(String state, String token) throws IOException {
+        try {
+            append(stateRecord(state, token));
+        } catch (JSONException e) {
+            throw new IOException("Could not encode journal entry: " + e.getMessage());
+        }
+        if (mOpen != null) apply(mOpen, state, token, null);
+    }
+
+    // Applies one record to the open entries, by token. Only the app's acknowledgement
+    // closes an entry that has been consumed; intents and failures of later attempts leave
+    // it alone.
+    private static void apply(Map<String, Entry> open, String state, String token, Purchase purchase) {
+        Entry entry = open.get(token);
+        boolean consumed = entry != null && entry.isConsumed();
+        if (STATE_INTENT.equals(state)) {
+            if (!consumed) open.put(token, new Entry(purchase, STATE_INTENT));
+        } else if (STATE_CONSUMED.equals(state)) {
+            if (entry != null) open.put(token, new Entry(entry.mPurchase, STATE_CONSUMED));
+        } else if (STATE_ACKNOWLEDGED.equals(state) || (STATE_FAILED.equals(state) && !consumed)) {
+            open.remove(token);
+        }
+    }
+
+    private static JSONObject intentRecord(Purchase purchase) throws JSONException {
+        JSONObject o = stateRecord(STATE_INTENT, purchase.getToken());
+        o.put("type", purchase.getItemType());
+        o.put("json", purchase.getOriginalJson());
+        o.put("sig", purchase.getSignature());
+        return o;
+    }
+
+    private static JSONObject stateRecord(String state, String token) throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("s", state);
+        o.put("t", token);
+        return o;
+    }
+
+    private void append(JSONObject record) throws IOException {
+        String line = record.toString() + "\n";
+        if (!mTailChecked) {
+            // After a torn append, end the torn line first, or our record would join it.
+            if (endsMidLine()) line = "\n" + line;
+            mTailChecked = true;
+        }
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write(line.getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private boolean endsMidLine() throws IOException {
+        long length = mFile.length();
+        if (length == 0) return false;
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            file.seek(length - 1);
+            return file.read() != '\n';
+        } finally {
+            file.close();
+        }
+    }
+
+    // Replays the file and returns the entries that haven't been acknowledged, by token.
+    private Map<String, Entry> readOpenEntries() {
+        Map<String, Entry> open = new LinkedHashMap<String, Entry>();
+        if (!mFile.exists()) return open;
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                JSONObject o;
+                try {
+                    o = new JSONObject(line);
+                } catch (JSONException e) {
+                    // A torn write from a crash. Later runs appended after it, so keep going.
+                    Log.w(TAG, "Ignoring unreadable consume journal line.");
+                    continue;
+                }
+                String state = o.optString("s");
+                String token = o.optString("t");
+                Purchase purchase = null;
+                if (STATE_INTENT.equals(state)) {
+                    try {
+                        purchase = new Purchase(o.optString("type"), o.optString("json"), o.optString("sig"));
+                    } catch (JSONException e) {
+                        Log.w(TAG, "Ignoring consume journal entry with bad purchase data.");
+                        continue;
+                    }
+                }
+                apply(open, state, token, purchase);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read consume journal: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return open;
+    }
+
+    // Rewrites the file with just the open entries, through a temporary file.
+    private void compact(Map<String, Entry> open) throws IOException {
+        mClosedEntries = 0;
+        if (open.isEmpty()) {
+            if (mFile.exists() && !mFile.delete()) {
+                throw new IOException("Could not delete " + mFile);
+            }
+            return;
+        }
+        FileOutputStream fos = new FileOutputStream(mTempFile);
+        Writer out = new OutputStreamWriter(fos, "UTF-8");
+        try {
+            for (Entry entry : open.values()) {
+                out.write(intentRecord(entry.mPurchase).toString() + "\n");
+                if (entry.isConsumed()) {
+                    out.write(stateRecord(STATE_CONSUMED, entry.mPurchase.getToken()).toString() + "\n");
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (JSONException e) {
+            throw new IOException("Could not encode journal entry: " + e.getMessage());
+        } finally {
+            out.close();
+        }
+        if (!mTempFile.renameTo(mFile)) {
+            mTempFile.delete();
+            throw new IOException("Could not replace " + mFile);
+        }
+    }
+}
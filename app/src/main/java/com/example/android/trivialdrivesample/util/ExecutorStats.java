@@ -0,0 +1,46 @@
+package com.example.android.trivialdrivesample.util;
+
+/**
+ * A point-in-time view of the background work of an {@link IabHelper}.
+ */
+public class ExecutorStats {
+    private final int mQueueDepth;
+    private final int mRunning;
+    private final long mCompleted;
+    private final long mAverageWaitMillis;
+    private final long mMaxWaitMillis;
+    private final long mAverageRunMillis;
+    private final long mMaxRunMillis;
+
+    ExecutorStats(int queueDepth, int running, long completed, long averageWaitMillis,
+                  long maxWaitMillis, long averageRunMillis, long maxRunMillis) {
+        mQueueDepth = queueDepth;
+        mRunning = running;
+        mCompleted = completed;
+        mAverageWaitMillis = averageWaitMillis;
+        mMaxWaitMillis = maxWaitMillis;
+        mAverageRunMillis = averageRunMillis;
+        mMaxRunMillis = maxRunMillis;
+    }
+
+    /** Tasks submitted but not yet started. */
+    public int getQueueDepth() { return mQueueDepth; }
+    /** Tasks currently running. */
+    public int getRunning() { return mRunning; }
+    /** Tasks finished so far. */
+    public long getCompleted() { return mCompleted; }
+    /** Average time finished tasks spent waiting to start. */
+    public long getAverageWaitMillis() { return mAverageWaitMillis; }
+    public long getMaxWaitMillis() { return mMaxWaitMillis; }
+    /** Average time finished tasks spent running. */
+    public long getAverageRunMillis() { return mAverageRunMillis; }
+    public long getMaxRunMillis() { return mMaxRunMillis; }
+
+    @Override
+    public String toString() {
+        return "ExecutorStats{queued=" + mQueueDepth + ", running=" + mRunning
+                + ", completed=" + mCompleted
+                + ", wait avg/max=" + mAverageWaitMillis + "/" + mMaxWaitMillis + "ms"
+                + ", run avg/max=" + mAverageRunMillis + "/" + mMaxRunMillis + "ms}";
+    }
+}
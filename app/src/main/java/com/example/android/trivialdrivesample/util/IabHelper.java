@@ -16,25 +16,35 @@ package com.example.android.trivialdrivesample.util;
 
 import android.app.Activity;
 import android.app.PendingIntent;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
-import android.content.ServiceConnection;
-import android.content.pm.ResolveInfo;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.StrictMode;
 import android.text.TextUtils;
-import android.util.Log;
 
 import com.android.vending.billing.IInAppBillingService;
 
 import org.json.JSONException;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -65,9 +75,9 @@ import java.util.List;
  * A note about threading: When using this object from a background thread, you may
  * call the blocking versions of methods; when using from a UI thread, call
  * only the asynchronous versions and handle the results via callbacks.
- * Also, notice that you can only call one asynchronous operation at a time;
- * attempting to start a second asynchronous operation while the first one
- * has not yet completed will result in an exception being thrown.
+ * Asynchronous operations that don't conflict (inventory queries and consumptions)
+ * may run at the same time; a purchase flow runs on its own. An operation that
+ * conflicts with one in progress is queued until it can start, rather than rejected.
  */
 public class IabHelper {
   // Billing response codes
@@ -109,8 +119,22 @@ public class IabHelper {
   // some fields on the getSkuDetails response bundle
   public static final String GET_SKU_DETAILS_ITEM_LIST = "ITEM_ID_LIST";
   public static final String GET_SKU_DETAILS_ITEM_TYPE_LIST = "ITEM_TYPE_LIST";
-  // Ensure atomic access to mAsyncInProgress and mDisposeAfterAsync.
-  private final Object mAsyncInProgressLock = new Object();
+  // getSkuDetails() accepts at most this many skus per call
+  static final int SKU_DETAILS_PACK_SIZE = 20;
+  // How many getSkuDetails() calls querySkuDetails may have in flight at once
+  static final int MAX_PARALLEL_SKU_DETAILS_CALLS = 4;
+  // How many consumePurchase() calls a batch consumption may have in flight at once
+  static final int MAX_PARALLEL_CONSUME_CALLS = 4;
+  // How many fetched getPurchases() pages a pipelined query may have waiting to be
+  // processed; fetching pauses while this many are queued
+  static final int MAX_PIPELINED_PAGES = 2;
+  // How many times to try consuming a token while the service reports it is unavailable
+  static final int MAX_CONSUME_ATTEMPTS = 3;
+  // Delay before the first consume retry; it doubles with every further attempt
+  static final long CONSUME_RETRY_DELAY_MS = 250;
+  // Threads in a helper's own executor: how many of the queries and consumptions the
+  // scheduler admits together actually run at once. The rest wait in the executor's queue.
+  static final int DEFAULT_EXECUTOR_THREADS = BillingExecutors.IO_POOL_SIZE;
   // Is debug logging enabled?
   boolean mDebugLog = false;
   String mDebugTag = "IabHelper";
@@ -118,29 +142,64 @@ public class IabHelper {
   boolean mSetupDone = false;
   // Has this object been disposed of? (If so, we should ignore callbacks, etc)
   boolean mDisposed = false;
-  // Do we need to dispose this object after an in-progress asynchronous operation?
-  boolean mDisposeAfterAsync = false;
   // Are subscriptions supported?
   boolean mSubscriptionsSupported = false;
   // Is subscription update supported?
   boolean mSubscriptionUpdateSupported = false;
-  // Is an asynchronous operation in progress?
-  // (only one at a time can be in progress)
-  boolean mAsyncInProgress = false;
-  // (for logging/debugging)
-  // if mAsyncInProgress == true, what asynchronous operation is in progress?
-  String mAsyncOperation = "";
+  // Are getPurchases() pages fetched and processed in a pipeline?
+  boolean mPipelinedQueries = false;
+  // Does queryInventory run the INAPP and SUBS branches concurrently?
+  boolean mConcurrentInventory = false;
+  // Cache in front of getSkuDetails(), or null to always ask the service
+  SkuDetailsCache mSkuDetailsCache;
+  // May expired cached SKU details be returned while they're refreshed in the background?
+  boolean mServeStaleSkuDetails = false;
+  // Where the last successful inventory is kept between runs, or null if disabled
+  InventorySnapshotStore mSnapshotStore;
+  // Where consumptions are journaled for crash recovery, or null if disabled
+  ConsumeJournal mConsumeJournal;
+  // Gets the consumptions recovered from the journal at setup
+  OnConsumeRecoveredListener mConsumeRecoveredListener;
+  // Tokens this helper consumed, to leave out of inventories whose query overlapped the
+  // consumption (see finishInventoryQuery)
+  final Set<String> mConsumedTokens = Collections.synchronizedSet(new HashSet<String>());
+  // Runs all of our background work; wraps the executor given to setExecutor(), or a
+  // pool of DEFAULT_EXECUTOR_THREADS threads of our own
+  InstrumentedExecutor mExecutor;
+  // Did we create mExecutor's delegate (and so have to shut it down)?
+  boolean mOwnsExecutor;
+  // For posting results to the main thread, see callbackHandler()
+  private Handler mMainHandler;
+  // Notified of what changed after each inventory query, or null
+  OnInventoryDeltaListener mDeltaListener;
+  // Copy of the last queried inventory, to compute deltas against
+  private Inventory mLastInventory;
+  private final Object mLastInventoryLock = new Object();
+  // Latencies and response codes of our calls to the billing service
+  final BillingMetrics mMetrics = new BillingMetrics();
+  // Decides which asynchronous operations may run at the same time
+  final OperationScheduler mScheduler = new OperationScheduler();
+  // The purchase flow operation holding the scheduler, if any; released once the buy
+  // intent is launched
+  OperationScheduler.Operation mPurchaseOperation;
+  // Is a purchase flow started and not over yet (including while its activity is up)?
+  volatile boolean mPurchaseFlowActive;
   // Context we were passed during initialization
   Context mContext;
-  // Connection to the service
+  // The shared connection to the service, held from startSetup until dispose
+  BillingConnectionManager mConnection;
+  BillingConnectionManager.SetupCallback mSetupCallback;
+  // Service set by setUpForTesting, used instead of the shared connection
   IInAppBillingService mService;
-  ServiceConnection mServiceConn;
   // The request code used to launch purchase flow
   int mRequestCode;
   // The item type of the current purchase flow
   String mPurchasingItemType;
   // Public key for verifying signature, in base64 encoding
   String mSignatureBase64 = null;
+  // Verifier holding the decoded mSignatureBase64; created on first use
+  private Security.Verifier mVerifier;
+  private final Object mVerifierLock = new Object();
   // The listener registered on launchPurchaseFlow, which we have to call back when
   // the purchase finishes
   OnIabPurchaseFinishedListener mPurchaseListener;
@@ -159,6 +218,8 @@ public class IabHelper {
   public IabHelper(Context ctx, String base64PublicKey) {
     mContext = ctx.getApplicationContext();
     mSignatureBase64 = base64PublicKey;
+    mExecutor = new InstrumentedExecutor(BillingExecutors.newPool("IabHelper", DEFAULT_EXECUTOR_THREADS));
+    mOwnsExecutor = true;
     logDebug("IAB helper created.");
   }
 
@@ -199,25 +260,332 @@ public class IabHelper {
    * Enables or disable debug logging through LogCat.
    */
   public void enableDebugLogging(boolean enable, String tag) {
-    checkNotDisposed();
-    mDebugLog = enable;
+    enableDebugLogging(enable);
     mDebugTag = tag;
   }
 
   public void enableDebugLogging(boolean enable) {
     checkNotDisposed();
     mDebugLog = enable;
+    BillingConnectionManager.get().setDebugLogging(enable);
+  }
+
+  /**
+   * Enables or disables pipelined purchase queries. When enabled, the next getPurchases()
+   * page is requested as soon as its continuation token is known, while the previous page
+   * is verified and parsed on another thread. Useful for accounts with many pages of
+   * owned items.
+   */
+  public void enablePipelinedQueries(boolean enable) {
+    checkNotDisposed();
+    mPipelinedQueries = enable;
+  }
+
+  /**
+   * Enables or disables concurrent inventory queries. When enabled (and subscriptions are
+   * supported), {@link #queryInventory} queries in-app items and subscriptions at the same
+   * time instead of one after the other.
+   */
+  public void enableConcurrentInventory(boolean enable) {
+    checkNotDisposed();
+    mConcurrentInventory = enable;
+  }
+
+  /**
+   * Puts a cache in front of getSkuDetails(). Inventory queries then only fetch the
+   * SKU details that are missing from the cache or have expired.
+   *
+   * @param cache      The cache to use, or null to disable caching.
+   * @param serveStale If true, expired details are returned immediately and refreshed in
+   *                   the background; if false, they are re-fetched before returning.
+   */
+  public void setSkuDetailsCache(SkuDetailsCache cache, boolean serveStale) {
+    checkNotDisposed();
+    mSkuDetailsCache = cache;
+    mServeStaleSkuDetails = serveStale;
+  }
+
+  /**
+   * Enables or disables the on-disk inventory snapshot. When enabled, every successful
+   * inventory query is saved to a private file, and can be read back on the next start
+   * with {@link #loadInventorySnapshot} / {@link #loadInventorySnapshotAsync} before setup
+   * has finished. Disabling it deletes the stored snapshot.
+   */
+  public void enableInventorySnapshot(boolean enable) {
+    checkNotDisposed();
+    if (enable) {
+      if (mSnapshotStore == null) mSnapshotStore = new InventorySnapshotStore(mContext);
+    } else if (mSnapshotStore != null) {
+      mSnapshotStore.clear();
+      mSnapshotStore = null;
+    }
+  }
+
+  /**
+   * Enables or disables the consume journal. While it is enabled, every consumption is
+   * recorded on disk before and after the billing service is called, and the app must call
+   * {@link #acknowledgeConsumption} once it has durably applied a successful consumption
+   * (e.g. saved the gas it bought). If the app dies in between, the next
+   * {@link #startSetup} finishes the interrupted consumptions and hands every purchase that
+   * was consumed but not acknowledged to listener, before any other asynchronous operation
+   * runs. Call this before {@link #startSetup}.
+   *
+   * @param listener Gets the recovered consumptions, or null to disable the journal.
+   *                 Entries still open are kept for when it is enabled again.
+   */
+  public void enableConsumeJournal(OnConsumeRecoveredListener listener) {
+    checkNotDisposed();
+    if (listener != null && mConsumeJournal == null) {
+      mConsumeJournal = new ConsumeJournal(mContext);
+    } else if (listener == null) {
+      mConsumeJournal = null;
+    }
+    mConsumeRecoveredListener = listener;
+  }
+
+  /**
+   * Tells the consume journal that the app has durably applied a consumption, so it won't be
+   * handed out again after a crash. Call this for every successful consumption while the
+   * journal is enabled, whether it came from {@link #consumeAsync} or from an
+   * {@link OnConsumeRecoveredListener}. This does a small synchronous disk write.
+   *
+   * @param purchase The consumed purchase.
+   */
+  public void acknowledgeConsumption(Purchase purchase) {
+    journal(ConsumeJournal.STATE_ACKNOWLEDGED, purchase);
+  }
+
+  // Records a consumption state in the journal, if it's enabled. Failing to record it must not
+  // fail the consumption itself, so errors are only logged.
+  void journal(String state, Purchase purchase) {
+    ConsumeJournal journal = mConsumeJournal;
+    if (journal == null) return;
+    try {
+      if (ConsumeJournal.STATE_INTENT.equals(state)) {
+        journal.recordIntent(purchase);
+      } else if (ConsumeJournal.STATE_CONSUMED.equals(state)) {
+        journal.recordConsumed(purchase.getToken());
+      } else if (ConsumeJournal.STATE_FAILED.equals(state)) {
+        journal.recordFailed(purchase.getToken());
+      } else {
+        journal.recordAcknowledged(purchase.getToken());
+      }
+    } catch (IOException e) {
+      logWarn("Failed to update consume journal: " + e.getMessage());
+    }
+  }
+
+  // Returns the state of token's open journal entry, or null if it has none or the journal
+  // is off.
+  String journalState(String token) {
+    ConsumeJournal journal = mConsumeJournal;
+    return journal != null ? journal.stateOf(token) : null;
+  }
+
+  // Finishes the consumptions a previous run left open in the journal, and delivers the
+  // consumed but unacknowledged ones. This runs as an exclusive operation, so any query
+  // started from the setup listener sees the result.
+  void replayConsumeJournal() {
+    final ConsumeJournal journal = mConsumeJournal;
+    final OnConsumeRecoveredListener listener = mConsumeRecoveredListener;
+    if (journal == null || listener == null) return;
+    mScheduler.submit(new OperationScheduler.Operation(OperationScheduler.KIND_EXCLUSIVE,
+      "replay consume journal") {
+      public void run() {
+        try {
+          final List<Purchase> recovered = new ArrayList<Purchase>();
+          for (ConsumeJournal.Entry entry : journal.loadPending()) {
+            if (mDisposed) return;
+            if (entry.isConsumed() || finishInterruptedConsume(entry.mPurchase)) {
+              recovered.add(entry.mPurchase);
+            }
+          }
+          logDebug("Consume journal replayed; " + recovered.size() + " consumption(s) recovered.");
+          if (recovered.isEmpty()) return;
+          // Post before finishing, so the app gets these before any queued query's result.
+          mainHandler().post(new Runnable() {
+            public void run() {
+              if (!mDisposed) listener.onConsumeRecovered(recovered);
+            }
+          });
+        } finally {
+          mScheduler.finish(this);
+        }
+      }
+    }, mExecutor);
+  }
+
+  // Consumes a purchase whose consumption was interrupted. Returns true if it is now consumed;
+  // false leaves it in the journal for the next setup (or a regular consume) to finish.
+  boolean finishInterruptedConsume(Purchase purchase) {
+    try {
+      int response = consumeWithRetry(purchase.getToken());
+      // Not owned: the interrupted call got through, the purchase is already consumed.
+      if (response == BILLING_RESPONSE_RESULT_OK || response == BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED) {
+        mConsumedTokens.add(purchase.getToken());
+        journal(ConsumeJournal.STATE_CONSUMED, purchase);
+        return true;
+      }
+      logWarn("Could not finish consuming sku " + purchase.getSku() + ". " + getResponseDesc(response));
+    } catch (RemoteException e) {
+      logWarn("Remote exception while finishing consumption of sku " + purchase.getSku());
+    }
+    return false;
+  }
+
+  /**
+   * Reads the inventory saved by the last successful query. Purchase signatures are
+   * verified again, and purchases that fail verification are left out. This method does
+   * disk I/O and signature checks; do not call it from a UI thread. It does not require
+   * setup to be done.
+   *
+   * @return The saved inventory, or null if snapshots are disabled or there is none.
+   */
+  public Inventory loadInventorySnapshot() {
+    checkNotDisposed();
+    return readInventorySnapshot();
+  }
+
+  // loadInventorySnapshot() without the disposal check.
+  private Inventory readInventorySnapshot() {
+    InventorySnapshotStore store = mSnapshotStore;
+    if (store == null) return null;
+    Inventory inv = store.load();
+    if (inv == null) return null;
+
+    List<Purchase> purchases = inv.getAllPurchases();
+    List<String> purchaseDataList = new ArrayList<String>(purchases.size());
+    List<String> signatureList = new ArrayList<String>(purchases.size());
+    for (Purchase p : purchases) {
+      purchaseDataList.add(p.getOriginalJson());
+      signatureList.add(p.getSignature());
+    }
+    boolean[] verified = verifyPurchases(purchaseDataList, signatureList);
+    for (int i = 0; i < verified.length; i++) {
+      if (!verified[i]) {
+        logWarn("Snapshot purchase signature verification FAILED. Not adding item.");
+        inv.erasePurchase(purchases.get(i).getSku());
+      }
+    }
+    logDebug("Loaded inventory snapshot with " + inv.mPurchaseMap.size() + " purchase(s).");
+    return inv;
+  }
+
+  /**
+   * Asynchronous wrapper for {@link #loadInventorySnapshot}. The listener receives a
+   * failure result (and a null inventory) if there is no snapshot. This method is safe to
+   * call from a UI thread, and may be called before setup has finished; it does not count
+   * as an asynchronous operation in progress.
+   */
+  public void loadInventorySnapshotAsync(final QueryInventoryFinishedListener listener) {
+    final Handler handler = callbackHandler();
+    checkNotDisposed();
+    mExecutor.execute(new Runnable() {
+      public void run() {
+        // dispose() lets queued tasks run; there is nobody to answer by then.
+        if (mDisposed) return;
+        final Inventory inv = readInventorySnapshot();
+        final IabResult result = inv != null
+          ? new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory snapshot loaded.")
+          : new IabResult(IABHELPER_UNKNOWN_ERROR, "No inventory snapshot available.");
+        if (!mDisposed && listener != null) {
+          handler.post(new Runnable() {
+            public void run() {
+              listener.onQueryInventoryFinished(result, inv);
+            }
+          });
+        }
+      }
+    });
+  }
+
+  // Saves inv as the snapshot to serve on the next start, if snapshots are enabled.
+  void saveInventorySnapshot(Inventory inv) {
+    InventorySnapshotStore store = mSnapshotStore;
+    if (store == null) return;
+    try {
+      store.save(inv);
+    } catch (IOException e) {
+      logWarn("Failed to save inventory snapshot: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Sets the executor that runs all of this helper's background work (asynchronous
+   * queries, consumption, snapshot loading, and so on). By default each helper has a
+   * small pool of its own, running up to {@link #DEFAULT_EXECUTOR_THREADS} operations at
+   * once; use this to run the work on your app's pool instead. Queries and consumptions
+   * only run as concurrently as the executor allows. The helper does not shut down an
+   * executor passed in here.
+   */
+  public void setExecutor(Executor executor) {
+    checkNotDisposed();
+    if (executor == null) throw new IllegalArgumentException("executor must not be null");
+    shutdownOwnExecutor();
+    mExecutor = new InstrumentedExecutor(executor);
+    mOwnsExecutor = false;
+  }
+
+  /**
+   * Returns the current queue depth and task latencies of this helper's background work.
+   * Counters start over when {@link #setExecutor} is called.
+   */
+  public ExecutorStats getExecutorStats() {
+    return mExecutor.getStats();
+  }
+
+  /**
+   * Returns latency histograms and response code counts for the calls this helper made to
+   * the billing service, plus purchase query page counts and verification failures. Cheap
+   * enough to poll; counters start at zero when the helper is created.
+   */
+  public BillingMetrics.Snapshot getMetrics() {
+    return mMetrics.snapshot();
+  }
+
+  private void shutdownOwnExecutor() {
+    if (mOwnsExecutor && mExecutor.getDelegate() instanceof ExecutorService) {
+      // Lets queued work finish, but no new work can be submitted.
+      ((ExecutorService) mExecutor.getDelegate()).shutdown();
+    }
+  }
+
+  // Returns a handler for posting results back to the calling thread. The main thread's
+  // handler is created once and reused; a thread without a looper gets the main thread's.
+  Handler callbackHandler() {
+    Looper looper = Looper.myLooper();
+    if (looper != null && looper != Looper.getMainLooper()) {
+      return new Handler(looper);
+    }
+    return mainHandler();
+  }
+
+  synchronized Handler mainHandler() {
+    if (mMainHandler == null) mMainHandler = new Handler(Looper.getMainLooper());
+    return mMainHandler;
+  }
+
+  /**
+   * Sets a listener to be told, on the UI thread, what changed after each inventory query
+   * (blocking or asynchronous) compared to the previous one. It is not called when nothing
+   * changed. The first query after creating the helper reports every purchase as added.
+   *
+   * @param listener The listener, or null to stop listening.
+   */
+  public void setInventoryDeltaListener(OnInventoryDeltaListener listener) {
+    checkNotDisposed();
+    mDeltaListener = listener;
   }
 
   /**
    * To get to know which achievements related and gained by user
    */
   public String getUserAchievements(String packageName) throws Exception {
-    logDebug("Package Name : " + packageName + " mSetupDone " + mSetupDone + " mService: " + mService + " mServiceConn : " + mServiceConn);
-    if (mService == null && !mSetupDone) {
+    logDebug("Package Name : " + packageName + " mSetupDone " + mSetupDone + " mConnection: " + mConnection);
+    if (mConnection == null && mService == null && !mSetupDone) {
       throw new Exception("Hope Not Found ");
     }
-    return mService.getUserAchievements(packageName);
+    return awaitService().getUserAchievements(packageName);
   }
 
   /**
@@ -238,6 +606,15 @@ public class IabHelper {
    * Starts the setup process. This will start up the setup process asynchronously.
    * You will be notified through the listener when the setup process is complete.
    * This method is safe to call from a UI thread.
+   * <p>
+   * All helpers in the process share one connection to the billing service (see
+   * {@link BillingConnectionManager}), so only the first one binds and probes the service;
+   * the others finish setup as soon as that's done. {@link #dispose} gives the connection
+   * back, and it's unbound once no helper uses it any more.
+   * <p>
+   * If the billing service goes away after setup (for example while the store app is being
+   * updated), the helper rebinds by itself with exponential backoff, and billing calls made
+   * meanwhile wait for it to come back. The listener is only called for the first connection.
    *
    * @param listener The listener to notify when the setup process is complete.
    */
@@ -246,104 +623,37 @@ public class IabHelper {
     checkNotDisposed();
     if (mSetupDone) throw new IllegalStateException("IAB helper is already set up.");
 
-    // Connection to IAB service
     logDebug("Starting in-app billing setup.");
-    mServiceConn = new ServiceConnection() {
-      @Override
-      public void onServiceDisconnected(ComponentName name) {
-        logDebug("Billing service disconnected.");
-        mService = null;
-      }
-
+    // Retrying after a failed setup: give back the reference the failed attempt took.
+    if (mConnection != null) mConnection.release(mSetupCallback);
+    mSetupCallback = new BillingConnectionManager.SetupCallback() {
       @Override
-      public void onServiceConnected(ComponentName name, IBinder service) {
+      public void onSetupFinished(IabResult result) {
         if (mDisposed) return;
-        logDebug("Billing service connected.");
-        mService = IInAppBillingService.Stub.asInterface(service);
-        String packageName = mContext.getPackageName();
-
-        try {
-
-          logDebug("Checking for in-app billing 3 support.");
-
-          // check for in-app billing v3 support
-          int response = mService.isBillingSupported(3, packageName, ITEM_TYPE_INAPP);
-          if (response != BILLING_RESPONSE_RESULT_OK) {
-            if (listener != null) listener.onIabSetupFinished(new IabResult(response,
-              "Error checking for billing v3 support."));
-
-            // if in-app purchases aren't supported, neither are subscriptions
-            mSubscriptionsSupported = false;
-            mSubscriptionUpdateSupported = false;
-            return;
-          } else {
-            logDebug("In-app billing version 3 supported for " + packageName);
-          }
-
-          // Check for v5 subscriptions support. This is needed for
-          // getBuyIntentToReplaceSku which allows for subscription update
-          response = mService.isBillingSupported(5, packageName, ITEM_TYPE_SUBS);
-          if (response == BILLING_RESPONSE_RESULT_OK) {
-            logDebug("Subscription re-signup AVAILABLE.");
-            mSubscriptionUpdateSupported = true;
-          } else {
-            logDebug("Subscription re-signup not available.");
-            mSubscriptionUpdateSupported = false;
-          }
-
-          if (mSubscriptionUpdateSupported) {
-            mSubscriptionsSupported = true;
-          } else {
-            // check for v3 subscriptions support
-            response = mService.isBillingSupported(3, packageName, ITEM_TYPE_SUBS);
-            if (response == BILLING_RESPONSE_RESULT_OK) {
-              logDebug("Subscriptions AVAILABLE.");
-              mSubscriptionsSupported = true;
-            } else {
-              logDebug("Subscriptions NOT AVAILABLE. Response: " + response);
-              mSubscriptionsSupported = false;
-              mSubscriptionUpdateSupported = false;
-            }
-          }
-
-          mSetupDone = true;
-        } catch (RemoteException e) {
-          if (listener != null) {
-            listener.onIabSetupFinished(new IabResult(IABHELPER_REMOTE_EXCEPTION,
-              "RemoteException while setting up in-app billing."));
-          }
-          e.printStackTrace();
+        if (result.isFailure()) {
+          if (listener != null) listener.onIabSetupFinished(result);
           return;
         }
+        mSubscriptionsSupported = mConnection.subscriptionsSupported();
+        mSubscriptionUpdateSupported = mConnection.subscriptionUpdateSupported();
+        mSetupDone = true;
 
-        if (listener != null) {
-          listener.onIabSetupFinished(new IabResult(BILLING_RESPONSE_RESULT_OK, "Setup successful."));
-        }
+        // Queued first, so that whatever the listener starts runs after the replay.
+        replayConsumeJournal();
+        if (listener != null) listener.onIabSetupFinished(result);
       }
-    };
-
-    // change intent action name and package name with ir.sadad.bami
-    Intent serviceIntent = new Intent("ir.sadad.bami.billing.InAppBillingService.BIND");
-    serviceIntent.setPackage("ir.sadad.bami.test");
-    List<ResolveInfo> intentServices = mContext.getPackageManager()
-      .queryIntentServices(serviceIntent, 0);
-    Log.d("TAG", "startSetup: <<<< intentServices : " + intentServices + " >>>>");
 
-    try {
-      if (intentServices != null && !intentServices.isEmpty()) {
-        // service available to handle that Intent
-        mContext.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
-      } else {// Show the prompt dialog for install Hope
-        // no service available to handle that Intent
-        if (listener != null) {
-          listener.onIabSetupFinished(
-            new IabResult(BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
-              "Billing service unavailable on device."));
-        }
+      @Override
+      public void onCapabilitiesChanged() {
+        if (mDisposed || !mSetupDone) return;
+        mSubscriptionsSupported = mConnection.subscriptionsSupported();
+        mSubscriptionUpdateSupported = mConnection.subscriptionUpdateSupported();
+        logDebug("Billing capabilities changed; subscriptions supported: ", mSubscriptionsSupported,
+          ", subscription update supported: ", mSubscriptionUpdateSupported);
       }
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+    };
+    mConnection = BillingConnectionManager.get();
+    mConnection.acquire(mContext, mMetrics, mSetupCallback);
   }
 
 
@@ -354,43 +664,44 @@ public class IabHelper {
    * disposed of, it can't be used again.
    */
   public void dispose() throws IabAsyncInProgressException {
-    synchronized (mAsyncInProgressLock) {
-      if (mAsyncInProgress) {
-        throw new IabAsyncInProgressException("Can't dispose because an async operation " +
-          "(" + mAsyncOperation + ") is in progress.");
-      }
+    if (!mScheduler.isIdle()) {
+      throw new IabAsyncInProgressException("Can't dispose because async operations are " +
+        "in progress (" + mScheduler.describe() + ").");
     }
     logDebug("Disposing.");
     mSetupDone = false;
-    if (mServiceConn != null) {
-      logDebug("Unbinding from service.");
-      if (mContext != null) mContext.unbindService(mServiceConn);
+    if (mConnection != null) {
+      logDebug("Releasing the billing service connection.");
+      mConnection.release(mSetupCallback);
     }
     mDisposed = true;
+    shutdownOwnExecutor();
     mContext = null;
-    mServiceConn = null;
+    mConnection = null;
+    mSetupCallback = null;
     mService = null;
     mPurchaseListener = null;
   }
 
   /**
-   * Disposes of object, releasing resources. If there is an in-progress async operation, this
-   * method will queue the dispose to occur after the operation has finished.
+   * Disposes of object, releasing resources. If there are in-progress or queued async
+   * operations, this method will queue the dispose to occur after they have finished.
    */
   public void disposeWhenFinished() {
-    synchronized (mAsyncInProgressLock) {
-      if (mAsyncInProgress) {
-        logDebug("Will dispose after async operation finishes.");
-        mDisposeAfterAsync = true;
-      } else {
+    Runnable disposeNow = new Runnable() {
+      public void run() {
         try {
           dispose();
         } catch (IabAsyncInProgressException e) {
-          // Should never be thrown, because we call dispose() only after checking that
-          // there's not already an async operation in progress.
-          e.printStackTrace();
+          // Only thrown if an operation was submitted after disposeWhenFinished().
+          logWarn("Could not dispose: " + e.getMessage());
         }
       }
+    };
+    if (mScheduler.runWhenIdle(disposeNow)) {
+      logDebug("Will dispose after async operations finish.");
+    } else {
+      disposeNow.run();
     }
   }
 
@@ -436,6 +747,13 @@ public class IabHelper {
    * activity's {@link Activity#onActivityResult(int, int, Intent)} method, at which poinCut you must call
    * this object's {@link #handleActivityResult} method to continue the purchase flow. This method
    * MUST be called from the UI thread of the Activity.
+   * <p>
+   * The flow waits for the operations submitted before it, and nothing else starts while it
+   * fetches and launches the buy intent. Once the purchase activity is up, other operations
+   * run again; unlike earlier versions of this class, they no longer fail with
+   * {@link IabAsyncInProgressException} until the result arrives, so a result that is never
+   * handed to {@link #handleActivityResult} can't hold them up. Another purchase flow still
+   * can't start until then, and fails fast with that exception.
    *
    * @param act         The calling activity.
    * @param sku         The sku of the item to purchase.
@@ -449,45 +767,97 @@ public class IabHelper {
    *                    data when the purchase completes. This extra data will be permanently bound to that
    *                    purchase and will always be returned when the purchase is queried.
    */
-  public void launchPurchaseFlow(Activity act, String sku, String itemType, List<String> oldSkus,
-                                 int requestCode, OnIabPurchaseFinishedListener listener, String extraData)
+  public void launchPurchaseFlow(final Activity act, final String sku, final String itemType,
+                                 final List<String> oldSkus, final int requestCode,
+                                 final OnIabPurchaseFinishedListener listener, final String extraData)
     throws IabAsyncInProgressException, IllegalStateException {
     checkNotDisposed();
     checkSetupDone("launchPurchaseFlow");
-    flagStartAsync("launchPurchaseFlow");
-    IabResult result;
+    if (mPurchaseFlowActive) {
+      throw new IabAsyncInProgressException("Can't start purchase flow for " + sku
+        + " because another purchase flow is in progress.");
+    }
+    mPurchaseFlowActive = true;
+    // A purchase flow runs alone: it is started once every operation submitted before it has
+    // finished, and nothing else starts until its buy intent is launched. The buy intent is
+    // fetched on our executor, then launched on the UI thread.
+    mScheduler.submit(new OperationScheduler.Operation(OperationScheduler.KIND_EXCLUSIVE,
+      "launchPurchaseFlow") {
+      public void run() {
+        mPurchaseOperation = this;
+        final Bundle buyIntentBundle;
+        try {
+          buyIntentBundle = getBuyIntentBundle(sku, itemType, oldSkus, extraData);
+        } catch (RemoteException e) {
+          logError("RemoteException while launching purchase flow for sku " + sku);
+          e.printStackTrace();
+          failPurchaseFlow(listener, new IabResult(IABHELPER_REMOTE_EXCEPTION,
+            "Remote exception while starting purchase flow"));
+          return;
+        } catch (RuntimeException e) {
+          endPurchaseFlow();
+          throw e;
+        }
+        if (buyIntentBundle == null) {
+          failPurchaseFlow(listener, new IabResult(IABHELPER_SUBSCRIPTION_UPDATE_NOT_AVAILABLE,
+            "Subscription updates are not available."));
+          return;
+        }
+        mainHandler().post(new Runnable() {
+          public void run() {
+            try {
+              launchPurchaseFlowNow(act, sku, itemType, requestCode, listener, buyIntentBundle);
+            } catch (RuntimeException e) {
+              endPurchaseFlow();
+              throw e;
+            }
+          }
+        });
+      }
+    }, mExecutor);
+  }
 
+  // Asks the service for the buy intent; null if it's a subscription update and those
+  // aren't supported. Runs on our executor.
+  private Bundle getBuyIntentBundle(String sku, String itemType, List<String> oldSkus,
+                                    String extraData) throws RemoteException {
 /*    if (itemType.equals(ITEM_TYPE_SUBS) && !mSubscriptionsSupported) {
       IabResult r = new IabResult(IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE,
         "Subscriptions are not available.");
-      flagEndAsync();
+      endPurchaseFlow();
       if (listener != null) listener.onIabPurchaseFinished(r, null);
       return;
     }*/
 
-    try {
-      logDebug("Constructing buy intent for " + sku + ", item type: " + itemType);
-      Bundle buyIntentBundle;
-      if (oldSkus == null || oldSkus.isEmpty()) {
-        // Purchasing a new item or subscription re-signup
-        buyIntentBundle = mService.getBuyIntent(3, mContext.getPackageName(), sku, itemType,
-          extraData);
-      } else {
-        // Subscription upgrade/downgrade
-        if (!mSubscriptionUpdateSupported) {
-          IabResult r = new IabResult(IABHELPER_SUBSCRIPTION_UPDATE_NOT_AVAILABLE,
-            "Subscription updates are not available.");
-          flagEndAsync();
-          if (listener != null) listener.onIabPurchaseFinished(r, null);
-          return;
-        }
-        buyIntentBundle = mService.getBuyIntentToReplaceSkus(5, mContext.getPackageName(),
-          oldSkus, sku, itemType, extraData);
+    logDebug("Constructing buy intent for " + sku + ", item type: " + itemType);
+    if (oldSkus == null || oldSkus.isEmpty()) {
+      // Purchasing a new item or subscription re-signup
+      return callGetBuyIntent(sku, itemType, extraData);
+    }
+    // Subscription upgrade/downgrade
+    if (!mSubscriptionUpdateSupported) return null;
+    return callGetBuyIntentToReplaceSkus(oldSkus, sku, itemType, extraData);
+  }
+
+  // Ends the purchase flow and tells the listener, on the UI thread, why it failed.
+  private void failPurchaseFlow(final OnIabPurchaseFinishedListener listener, final IabResult result) {
+    mainHandler().post(new Runnable() {
+      public void run() {
+        endPurchaseFlow();
+        if (listener != null) listener.onIabPurchaseFinished(result, null);
       }
+    });
+  }
+
+  // Runs on the UI thread with the buy intent fetched by getBuyIntentBundle.
+  private void launchPurchaseFlowNow(Activity act, String sku, String itemType, int requestCode,
+                                     OnIabPurchaseFinishedListener listener, Bundle buyIntentBundle) {
+    IabResult result;
+    try {
       int response = getResponseCodeFromBundle(buyIntentBundle);
       if (response != BILLING_RESPONSE_RESULT_OK) {
         logError("Unable to buy item, Error response: " + getResponseDesc(response));
-        flagEndAsync();
+        endPurchaseFlow();
         result = new IabResult(response, "Unable to buy item");
         if (listener != null) listener.onIabPurchaseFinished(result, null);
         return;
@@ -502,6 +872,8 @@ public class IabHelper {
 
       if (subscribeInfo != null) {
         logDebug("Congratulation!! User has app subscription!!");
+        // No purchase activity to wait for, so the flow is over already.
+        endPurchaseFlow();
         createSuccessfulPurchase(act, subscribeInfo, listener);
         return;
       }
@@ -518,23 +890,31 @@ public class IabHelper {
         Integer.valueOf(0),
         Integer.valueOf(0),
         Integer.valueOf(0));
+      // The rest is up to the purchase activity; let other operations run meanwhile.
+      releasePurchaseOperation();
     } catch (SendIntentException e) {
       logError("SendIntentException while launching purchase flow for sku " + sku);
       e.printStackTrace();
-      flagEndAsync();
+      endPurchaseFlow();
 
       result = new IabResult(IABHELPER_SEND_INTENT_FAILED, "Failed to send intent.");
       if (listener != null) listener.onIabPurchaseFinished(result, null);
-    } catch (RemoteException e) {
-      logError("RemoteException while launching purchase flow for sku " + sku);
-      e.printStackTrace();
-      flagEndAsync();
-
-      result = new IabResult(IABHELPER_REMOTE_EXCEPTION, "Remote exception while starting purchase flow");
-      if (listener != null) listener.onIabPurchaseFinished(result, null);
     }
   }
 
+  // Ends the purchase flow in progress, letting queued operations and purchase flows start.
+  void endPurchaseFlow() {
+    mPurchaseFlowActive = false;
+    releasePurchaseOperation();
+  }
+
+  // Lets queued operations start, if the purchase flow still holds the scheduler.
+  private void releasePurchaseOperation() {
+    OperationScheduler.Operation op = mPurchaseOperation;
+    mPurchaseOperation = null;
+    if (op != null) mScheduler.finish(op);
+  }
+
   private void createSuccessfulPurchase(Activity activity, String subscribeInfo, OnIabPurchaseFinishedListener mPurchaseListener) {
     if (mPurchaseListener == null) return;
 
@@ -574,7 +954,7 @@ public class IabHelper {
     checkSetupDone("handleActivityResult");
 
     // end of async purchase operation that started on launchPurchaseFlow
-    flagEndAsync();
+    endPurchaseFlow();
 
     if (data == null) {
       logError("Null data in IAB activity result.");
@@ -608,10 +988,11 @@ public class IabHelper {
         purchase = new Purchase(mPurchasingItemType, purchaseData, dataSignature);
         String sku = purchase.getSku();
 
-        if (!purchase.isSubscription) {
+        if (!purchase.isSubscription()) {
           // Verify signature
-          if (!Security.verifyPurchase(mSignatureBase64, purchaseData, dataSignature)) {
+          if (!verifyPurchase(purchaseData, dataSignature)) {
             logError("Purchase signature verification FAILED for sku " + sku);
+            mMetrics.recordVerificationFailures(1);
             result = new IabResult(IABHELPER_VERIFICATION_FAILED, "Signature verification failed for sku " + sku);
             if (mPurchaseListener != null)
               mPurchaseListener.onIabPurchaseFinished(result, purchase);
@@ -672,36 +1053,134 @@ public class IabHelper {
                                   List<String> moreSubsSkus) throws IabException {
     checkNotDisposed();
     checkSetupDone("queryInventory");
-    try {
-      Inventory inv = new Inventory();
-      int r = queryPurchases(inv, ITEM_TYPE_INAPP);
-      if (r != BILLING_RESPONSE_RESULT_OK) {
-        throw new IabException(r, "Error refreshing inventory (querying owned items).");
+    Inventory inv;
+    if (mConcurrentInventory && mSubscriptionsSupported) {
+      inv = queryInventoryConcurrently(querySkuDetails, moreItemSkus, moreSubsSkus);
+    } else {
+      inv = new Inventory();
+      queryInventoryBranch(inv, ITEM_TYPE_INAPP, querySkuDetails, moreItemSkus, null);
+
+      // if subscriptions are supported, then also query for subscriptions
+      if (mSubscriptionsSupported) {
+        queryInventoryBranch(inv, ITEM_TYPE_SUBS, querySkuDetails, moreSubsSkus, null);
       }
+    }
+    finishInventoryQuery(inv);
+    return inv;
+  }
 
-      if (querySkuDetails) {
-        r = querySkuDetails(ITEM_TYPE_INAPP, inv, moreItemSkus);
-        if (r != BILLING_RESPONSE_RESULT_OK) {
-          throw new IabException(r, "Error refreshing inventory (querying prices of items).");
-        }
+  // What every successful inventory query ends with, wherever the inventory came from:
+  // leaving out what we've consumed, saving the snapshot and telling the delta listener.
+  // Reads run alongside consumes, so the service may have listed a purchase that was
+  // consumed before the query got here.
+  void finishInventoryQuery(Inventory inv) {
+    for (Purchase p : inv.getAllPurchases()) {
+      if (mConsumedTokens.contains(p.getToken())) {
+        logDebug("Leaving out consumed purchase: ", p.getSku());
+        inv.erasePurchase(p.getSku());
+      }
+    }
+    saveInventorySnapshot(inv);
+    publishInventoryDelta(inv);
+  }
+
+  // Diffs inv against the previous query's inventory and tells the delta listener, if any,
+  // about the differences.
+  void publishInventoryDelta(final Inventory inv) {
+    final InventoryDelta delta;
+    synchronized (mLastInventoryLock) {
+      delta = InventoryDelta.between(mLastInventory, inv);
+      // Keep a copy: callers are free to erasePurchase() on the one we return.
+      mLastInventory = new Inventory();
+      mLastInventory.addAll(inv);
+    }
+    logDebug("Inventory delta: ", delta);
+    final OnInventoryDeltaListener listener = mDeltaListener;
+    if (listener == null || delta.isEmpty()) return;
+    mainHandler().post(new Runnable() {
+      public void run() {
+        if (!mDisposed) listener.onInventoryDelta(delta, inv);
       }
+    });
+  }
 
-      // if subscriptions are supported, then also query for subscriptions
-      if (mSubscriptionsSupported) {
-        r = queryPurchases(inv, ITEM_TYPE_SUBS);
-        if (r != BILLING_RESPONSE_RESULT_OK) {
-          throw new IabException(r, "Error refreshing inventory (querying owned subscriptions).");
+  /**
+   * Same as {@link #queryInventory}, but the INAPP and SUBS branches run at the same time,
+   * each into its own Inventory, and are merged at the end. If either branch fails, the
+   * other one is cancelled and the failing branch's exception is thrown.
+   */
+  Inventory queryInventoryConcurrently(final boolean querySkuDetails, List<String> moreItemSkus,
+                                       final List<String> moreSubsSkus) throws IabException {
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final Inventory subsInv = new Inventory();
+    FutureTask<Void> subsTask = new FutureTask<Void>(new Callable<Void>() {
+      public Void call() throws IabException {
+        boolean ok = false;
+        try {
+          queryInventoryBranch(subsInv, ITEM_TYPE_SUBS, querySkuDetails, moreSubsSkus, cancelled);
+          ok = true;
+          return null;
+        } finally {
+          if (!ok) cancelled.set(true);
         }
+      }
+    });
+    BillingExecutors.ioPool().execute(subsTask);
 
-        if (querySkuDetails) {
-          r = querySkuDetails(ITEM_TYPE_SUBS, inv, moreSubsSkus);
-          if (r != BILLING_RESPONSE_RESULT_OK) {
-            throw new IabException(r, "Error refreshing inventory (querying prices of subscriptions).");
-          }
-        }
+    Inventory inv = new Inventory();
+    boolean ok = false;
+    try {
+      queryInventoryBranch(inv, ITEM_TYPE_INAPP, querySkuDetails, moreItemSkus, cancelled);
+      ok = true;
+    } finally {
+      if (!ok) {
+        cancelled.set(true);
+        subsTask.cancel(true);
       }
+    }
+
+    // If the pool hasn't picked up the SUBS branch yet, run it here rather than wait.
+    subsTask.run();
+    try {
+      subsTask.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IabException(IABHELPER_UNKNOWN_ERROR, "Interrupted while refreshing inventory.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IabException) throw (IabException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+
+    inv.addAll(subsInv);
+    return inv;
+  }
 
-      return inv;
+  /**
+   * Queries owned items and, if querySkuDetails is set, SKU details for one item type.
+   * If cancelled is not null and gets set, stops before the next remote phase.
+   */
+  void queryInventoryBranch(Inventory inv, String itemType, boolean querySkuDetails,
+                            List<String> moreSkus, AtomicBoolean cancelled) throws IabException {
+    boolean subs = ITEM_TYPE_SUBS.equals(itemType);
+    try {
+      int r = queryPurchases(inv, itemType);
+      if (r != BILLING_RESPONSE_RESULT_OK) {
+        throw new IabException(r, subs
+          ? "Error refreshing inventory (querying owned subscriptions)."
+          : "Error refreshing inventory (querying owned items).");
+      }
+
+      if (querySkuDetails && (cancelled == null || !cancelled.get())) {
+        r = querySkuDetails(itemType, inv, moreSkus);
+        if (r != BILLING_RESPONSE_RESULT_OK) {
+          throw new IabException(r, subs
+            ? "Error refreshing inventory (querying prices of subscriptions)."
+            : "Error refreshing inventory (querying prices of items).");
+        }
+      }
     } catch (RemoteException e) {
       throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while refreshing inventory.", e);
     } catch (JSONException e) {
@@ -723,11 +1202,11 @@ public class IabHelper {
   public void queryInventoryAsync(final boolean querySkuDetails, final List<String> moreItemSkus,
                                   final List<String> moreSubsSkus, final QueryInventoryFinishedListener listener)
     throws IabAsyncInProgressException {
-    final Handler handler = new Handler();
+    final Handler handler = callbackHandler();
     checkNotDisposed();
     checkSetupDone("queryInventory");
-    flagStartAsync("refresh inventory");
-    (new Thread(new Runnable() {
+    mScheduler.submit(new OperationScheduler.Operation(OperationScheduler.KIND_READ,
+      "refresh inventory") {
       public void run() {
         IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
         Inventory inv = null;
@@ -735,10 +1214,10 @@ public class IabHelper {
           inv = queryInventory(querySkuDetails, moreItemSkus, moreSubsSkus);
         } catch (IabException ex) {
           result = ex.getResult();
+        } finally {
+          mScheduler.finish(this);
         }
 
-        flagEndAsync();
-
         final IabResult result_f = result;
         final Inventory inv_f = inv;
         if (!mDisposed && listener != null) {
@@ -749,7 +1228,7 @@ public class IabHelper {
           });
         }
       }
-    })).start();
+    }, mExecutor);
   }
 
   public void queryInventoryAsync(QueryInventoryFinishedListener listener)
@@ -757,6 +1236,122 @@ public class IabHelper {
     queryInventoryAsync(false, null, null, listener);
   }
 
+  /**
+   * Delivers an inventory that another helper queried (see {@link BillingPrewarmer}) as if
+   * this helper had just queried it. It runs as a read operation, so it waits for the
+   * consume journal replay started at setup. Like any query's, its purchases that this
+   * helper has consumed are left out and the snapshot and delta listener are updated, and the
+   * listener is called back like {@link #queryInventoryAsync}.
+   */
+  void adoptInventoryAsync(final Inventory queried, final QueryInventoryFinishedListener listener) {
+    final Handler handler = callbackHandler();
+    checkNotDisposed();
+    checkSetupDone("queryInventory");
+    mScheduler.submit(new OperationScheduler.Operation(OperationScheduler.KIND_READ,
+      "adopt inventory") {
+      public void run() {
+        final Inventory inv = new Inventory();
+        try {
+          // A copy: the prewarmer may hand the same inventory to other helpers.
+          inv.addAll(queried);
+          finishInventoryQuery(inv);
+        } finally {
+          mScheduler.finish(this);
+        }
+
+        if (!mDisposed && listener != null) {
+          handler.post(new Runnable() {
+            public void run() {
+              listener.onQueryInventoryFinished(
+                new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful."), inv);
+            }
+          });
+        }
+      }
+    }, mExecutor);
+  }
+
+  /**
+   * Fetches the owned purchases of one item type and hands each one to listener as soon as
+   * its page has been fetched and verified, instead of collecting them all into an
+   * {@link Inventory} first. This lets apps with many purchases start provisioning early,
+   * without holding every purchase in memory. Purchases that fail verification are skipped.
+   * <p>
+   * The listener is called one purchase at a time, in order: on this thread, or on a
+   * background thread if pipelined queries are enabled. This method may block or take long
+   * to execute. Do not call from a UI thread; for that, use {@link #streamPurchasesAsync}.
+   *
+   * @param itemType {@link #ITEM_TYPE_INAPP} or {@link #ITEM_TYPE_SUBS}.
+   * @param listener Gets each verified purchase.
+   * @throws IabException if a page could not be fetched, or some purchase failed
+   *                      verification. Purchases already delivered stay valid.
+   */
+  public void streamPurchases(String itemType, PurchaseStreamListener listener) throws IabException {
+    checkNotDisposed();
+    checkSetupDone("streamPurchases");
+    if (ITEM_TYPE_SUBS.equals(itemType) && !mSubscriptionsSupported) {
+      throw new IabException(IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE, "Subscriptions are not available.");
+    }
+    try {
+      int r = queryPurchases(itemType, listener);
+      if (r != BILLING_RESPONSE_RESULT_OK) {
+        throw new IabException(r, "Error streaming owned purchases.");
+      }
+    } catch (RemoteException e) {
+      throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while streaming purchases.", e);
+    } catch (JSONException e) {
+      throw new IabException(IABHELPER_BAD_RESPONSE, "Error parsing JSON response while streaming purchases.", e);
+    }
+  }
+
+  /**
+   * Asynchronous wrapper for {@link #streamPurchases}. Each purchase is posted to listener on
+   * the UI thread as it is verified; finishedListener is called once after the last one.
+   * This method is safe to call from a UI thread.
+   *
+   * @param itemType         {@link #ITEM_TYPE_INAPP} or {@link #ITEM_TYPE_SUBS}.
+   * @param listener         Gets each verified purchase.
+   * @param finishedListener Gets the overall result, or null.
+   */
+  public void streamPurchasesAsync(final String itemType, final PurchaseStreamListener listener,
+                                   final OnPurchaseStreamFinishedListener finishedListener)
+    throws IabAsyncInProgressException {
+    final Handler handler = callbackHandler();
+    checkNotDisposed();
+    checkSetupDone("streamPurchases");
+    mScheduler.submit(new OperationScheduler.Operation(OperationScheduler.KIND_READ,
+      "stream purchases") {
+      public void run() {
+        IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Purchase stream finished.");
+        try {
+          streamPurchases(itemType, new PurchaseStreamListener() {
+            public void onPurchase(final Purchase purchase) {
+              if (mDisposed) return;
+              handler.post(new Runnable() {
+                public void run() {
+                  if (!mDisposed) listener.onPurchase(purchase);
+                }
+              });
+            }
+          });
+        } catch (IabException ex) {
+          result = ex.getResult();
+        } finally {
+          mScheduler.finish(this);
+        }
+
+        final IabResult result_f = result;
+        if (!mDisposed && finishedListener != null) {
+          handler.post(new Runnable() {
+            public void run() {
+              finishedListener.onPurchaseStreamFinished(result_f);
+            }
+          });
+        }
+      }
+    }, mExecutor);
+  }
+
   /**
    * Consumes a given in-app product. Consuming can only be done on an item
    * that's owned, and as a result of consumption, the user will no longer own it.
@@ -767,7 +1362,7 @@ public class IabHelper {
    * @throws IabException if there is a problem during consumption.
    */
   void consume(Purchase itemInfo) throws IabException {
-    logDebug(itemInfo.toString());
+    logDebug("Consume: ", itemInfo);
     checkNotDisposed();
     checkSetupDone("consume");
 
@@ -785,12 +1380,25 @@ public class IabHelper {
           + sku + " " + itemInfo);
       }
 
-      logDebug("Consuming sku: " + sku + ", token: " + token + " ");
-      int response = mService.consumePurchase(3, mContext.getPackageName(), token);
-      if (response == BILLING_RESPONSE_RESULT_OK) {
-        logDebug("Successfully consumed sku: " + sku);
+      String previous = journalState(token);
+      if (ConsumeJournal.STATE_CONSUMED.equals(previous)) {
+        // Consumed already and waiting for the app's acknowledgement; leave that entry be.
+        throw new IabException(BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED, "Already consumed sku " + sku);
+      }
+
+      logDebug("Consuming sku: ", sku, ", token: ", token);
+      // On a RemoteException the entry stays open: we can't know whether it was consumed.
+      journal(ConsumeJournal.STATE_INTENT, itemInfo);
+      int response = consumeWithRetry(token);
+      // Not owned after an interrupted attempt: that call got through, as the replay assumes.
+      if (response == BILLING_RESPONSE_RESULT_OK || (response == BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED
+        && ConsumeJournal.STATE_INTENT.equals(previous))) {
+        logDebug("Successfully consumed sku: ", sku);
+        mConsumedTokens.add(token);
+        journal(ConsumeJournal.STATE_CONSUMED, itemInfo);
       } else {
-        logDebug("Error consuming consuming sku " + sku + ". " + getResponseDesc(response));
+        if (mDebugLog) logDebug("Error consuming consuming sku " + sku + ". " + getResponseDesc(response));
+        journal(ConsumeJournal.STATE_FAILED, itemInfo);
         throw new IabException(response, "Error consuming sku " + sku);
       }
     } catch (RemoteException e) {
@@ -798,6 +1406,57 @@ public class IabHelper {
     }
   }
 
+  // Calls consumePurchase() for token, retrying with exponential backoff for as long as
+  // the service reports it is unavailable, up to MAX_CONSUME_ATTEMPTS times.
+  private int consumeWithRetry(String token) throws RemoteException {
+    long delay = CONSUME_RETRY_DELAY_MS;
+    for (int attempt = 1; ; attempt++) {
+      int response = callConsumePurchase(token);
+      if (response != BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE
+        || attempt >= MAX_CONSUME_ATTEMPTS || mDisposed) {
+        return response;
+      }
+      if (mDebugLog) logDebug("Service unavailable while consuming, retrying in " + delay + "ms.");
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return response;
+      }
+      delay *= 2;
+    }
+  }
+
+  /**
+   * Consumes several in-app products, with up to {@link #MAX_PARALLEL_CONSUME_CALLS}
+   * calls to the billing service in flight at once. A failure to consume one purchase
+   * doesn't stop the others. Like {@link #consume}, this blocks; do not call it from
+   * the UI thread.
+   *
+   * @param purchases The purchases to consume.
+   * @return One result per purchase, in the same order as purchases.
+   */
+  List<IabResult> consumeBatch(final List<Purchase> purchases) {
+    checkNotDisposed();
+    checkSetupDone("consume");
+    final IabResult[] results = new IabResult[purchases.size()];
+    BillingExecutors.forEachIndex(BillingExecutors.ioPool(), purchases.size(),
+      MAX_PARALLEL_CONSUME_CALLS, new BillingExecutors.IndexedTask() {
+        public boolean run(int index) {
+          Purchase purchase = purchases.get(index);
+          try {
+            consume(purchase);
+            results[index] = new IabResult(BILLING_RESPONSE_RESULT_OK,
+              "Successful consume of sku " + purchase.getSku());
+          } catch (IabException ex) {
+            results[index] = ex.getResult();
+          }
+          return true;
+        }
+      });
+    return new ArrayList<IabResult>(Arrays.asList(results));
+  }
+
   /**
    * Asynchronous wrapper to item consumption. Works like {@link #consume}, but
    * performs the consumption in the background and notifies completion through
@@ -816,7 +1475,8 @@ public class IabHelper {
   }
 
   /**
-   * Same as {@link #consumeAsync}, but for multiple items at once.
+   * Same as {@link #consumeAsync}, but for multiple items at once. Several purchases are
+   * consumed in parallel; results are reported in the same order as purchases.
    *
    * @param purchases The list of PurchaseInfo objects representing the purchases to consume.
    * @param listener  The listener to notify when the consumption operation finishes.
@@ -828,6 +1488,20 @@ public class IabHelper {
     consumeAsyncInternal(purchases, null, listener);
   }
 
+  /**
+   * For tests only: makes this helper use service as its billing service, as if
+   * {@link #startSetup} had bound to it and found the given capabilities. Use it with the
+   * FakeInAppBillingService of the instrumentation tests.
+   */
+  void setUpForTesting(IInAppBillingService service, boolean subscriptionsSupported) {
+    checkNotDisposed();
+    if (mSetupDone) throw new IllegalStateException("IAB helper is already set up.");
+    mService = service;
+    mSubscriptionsSupported = subscriptionsSupported;
+    mSubscriptionUpdateSupported = subscriptionsSupported;
+    mSetupDone = true;
+  }
+
   // Checks that setup was done; if not, throws an exception.
   void checkSetupDone(String operation) {
     if (!mSetupDone) {
@@ -836,9 +1510,104 @@ public class IabHelper {
     }
   }
 
+  /**
+   * Returns the billing service, waiting for it to reconnect if it went away after setup;
+   * see {@link BillingConnectionManager#awaitService}.
+   *
+   * @throws RemoteException if the service isn't connected.
+   */
+  IInAppBillingService awaitService() throws RemoteException {
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      // Binder calls can block for as long as the store app takes; the async methods make
+      // theirs on our executor.
+      logWarn("Billing service called on the main thread; use the async methods instead.");
+      StrictMode.noteSlowCall("IabHelper billing service call");
+    }
+    IInAppBillingService service = mService;
+    if (service != null) return service;
+    BillingConnectionManager connection = mConnection;
+    if (connection == null) throw new RemoteException("Billing service is not connected.");
+    return connection.awaitService();
+  }
+
+  // Every call to the billing service goes through one of the call*() methods below, so that
+  // it is timed and its response code counted in mMetrics. The isBillingSupported() probes
+  // are made (and counted) by BillingConnectionManager.
+
+  Bundle callGetPurchases(String itemType, String continueToken) throws RemoteException {
+    long start = BillingMetrics.start();
+    try {
+      Bundle b = awaitService().getPurchases(3, mContext.getPackageName(), itemType, continueToken);
+      mMetrics.record(BillingMetrics.OP_GET_PURCHASES, start, peekResponseCode(b));
+      return b;
+    } catch (RemoteException e) {
+      mMetrics.record(BillingMetrics.OP_GET_PURCHASES, start, IABHELPER_REMOTE_EXCEPTION);
+      throw e;
+    }
+  }
+
+  Bundle callGetSkuDetails(String itemType, Bundle querySkus) throws RemoteException {
+    long start = BillingMetrics.start();
+    try {
+      Bundle b = awaitService().getSkuDetails(3, mContext.getPackageName(), itemType, querySkus);
+      mMetrics.record(BillingMetrics.OP_GET_SKU_DETAILS, start, peekResponseCode(b));
+      return b;
+    } catch (RemoteException e) {
+      mMetrics.record(BillingMetrics.OP_GET_SKU_DETAILS, start, IABHELPER_REMOTE_EXCEPTION);
+      throw e;
+    }
+  }
+
+  Bundle callGetBuyIntent(String sku, String itemType, String extraData) throws RemoteException {
+    long start = BillingMetrics.start();
+    try {
+      Bundle b = awaitService().getBuyIntent(3, mContext.getPackageName(), sku, itemType, extraData);
+      mMetrics.record(BillingMetrics.OP_GET_BUY_INTENT, start, peekResponseCode(b));
+      return b;
+    } catch (RemoteException e) {
+      mMetrics.record(BillingMetrics.OP_GET_BUY_INTENT, start, IABHELPER_REMOTE_EXCEPTION);
+      throw e;
+    }
+  }
+
+  Bundle callGetBuyIntentToReplaceSkus(List<String> oldSkus, String sku, String itemType,
+                                       String extraData) throws RemoteException {
+    long start = BillingMetrics.start();
+    try {
+      Bundle b = awaitService().getBuyIntentToReplaceSkus(5, mContext.getPackageName(), oldSkus, sku,
+        itemType, extraData);
+      mMetrics.record(BillingMetrics.OP_GET_BUY_INTENT, start, peekResponseCode(b));
+      return b;
+    } catch (RemoteException e) {
+      mMetrics.record(BillingMetrics.OP_GET_BUY_INTENT, start, IABHELPER_REMOTE_EXCEPTION);
+      throw e;
+    }
+  }
+
+  int callConsumePurchase(String token) throws RemoteException {
+    long start = BillingMetrics.start();
+    try {
+      int response = awaitService().consumePurchase(3, mContext.getPackageName(), token);
+      mMetrics.record(BillingMetrics.OP_CONSUME_PURCHASE, start, response);
+      return response;
+    } catch (RemoteException e) {
+      mMetrics.record(BillingMetrics.OP_CONSUME_PURCHASE, start, IABHELPER_REMOTE_EXCEPTION);
+      throw e;
+    }
+  }
+
+  // Like getResponseCodeFromBundle, but without logging or throwing; for metrics only.
+  static int peekResponseCode(Bundle b) {
+    Object o = b == null ? null : b.get(RESPONSE_CODE);
+    if (o == null) return b == null ? IABHELPER_BAD_RESPONSE : BILLING_RESPONSE_RESULT_OK;
+    if (o instanceof Integer) return ((Integer) o).intValue();
+    if (o instanceof Long) return (int) ((Long) o).longValue();
+    return IABHELPER_BAD_RESPONSE;
+  }
+
   // Workaround to bug where sometimes response codes come as Long instead of Integer
   int getResponseCodeFromBundle(Bundle b) {
-    logDebug(b.toString());
+    if (mDebugLog) logDebug(b.toString());
     Object o = b.get(RESPONSE_CODE);
     if (o == null) {
       logDebug("Bundle with null response code, assuming OK (known issue)");
@@ -867,46 +1636,129 @@ public class IabHelper {
     }
   }
 
-  void flagStartAsync(String operation) throws IabAsyncInProgressException {
-    synchronized (mAsyncInProgressLock) {
-      if (mAsyncInProgress) {
-        throw new IabAsyncInProgressException("Can't start async operation (" +
-          operation + ") because another async operation (" + mAsyncOperation +
-          ") is in progress.");
+  int queryPurchases(final Inventory inv, String itemType) throws JSONException, RemoteException {
+    return queryPurchases(itemType, new PurchaseStreamListener() {
+      public void onPurchase(Purchase purchase) {
+        inv.addPurchase(purchase);
       }
-      mAsyncOperation = operation;
-      mAsyncInProgress = true;
-      logDebug("Starting async operation: " + operation);
-    }
+    });
   }
 
-  void flagEndAsync() {
-    synchronized (mAsyncInProgressLock) {
-      logDebug("Ending async operation: " + mAsyncOperation);
-      mAsyncOperation = "";
-      mAsyncInProgress = false;
-      if (mDisposeAfterAsync) {
-        try {
-          dispose();
-        } catch (IabAsyncInProgressException e) {
-          // Should not be thrown, because we reset mAsyncInProgress immediately before
-          // calling dispose().
+  // Fetches all pages of owned purchases of itemType and hands each verified purchase to
+  // sink, one at a time and in order, as its page comes in.
+  int queryPurchases(String itemType, PurchaseStreamListener sink)
+    throws JSONException, RemoteException {
+    if (mPipelinedQueries) return queryPurchasesPipelined(itemType, sink);
+
+    // Query purchases
+    logDebug("Querying owned items, item type: ", itemType);
+    logDebug("Package name: ", mContext.getPackageName());
+    boolean verificationFailed = false;
+    String continueToken = null;
+    int pageCount = 0;
+
+    try {
+      do {
+        logDebug("Calling getPurchases with continuation token: ", continueToken);
+        Bundle ownedItems = callGetPurchases(itemType, continueToken);
+        pageCount++;
+        int response = checkPurchasesBundle(ownedItems);
+        if (response != BILLING_RESPONSE_RESULT_OK) return response;
+
+        if (!addPurchasesPage(sink, itemType, ownedItems.getStringArrayList(RESPONSE_INAPP_ITEM_LIST),
+          ownedItems.getStringArrayList(RESPONSE_INAPP_PURCHASE_DATA_LIST),
+          ownedItems.getStringArrayList(RESPONSE_INAPP_SIGNATURE_LIST))) {
+          verificationFailed = true;
         }
-      }
+
+        continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
+        logDebug("Continuation token: ", continueToken);
+      } while (!TextUtils.isEmpty(continueToken));
+    } finally {
+      mMetrics.recordPurchaseQuery(pageCount);
     }
+
+    return verificationFailed ? IABHELPER_VERIFICATION_FAILED : BILLING_RESPONSE_RESULT_OK;
   }
 
-  int queryPurchases(Inventory inv, String itemType) throws JSONException, RemoteException {
-    // Query purchases
-    logDebug("Querying owned items, item type: " + itemType);
-    logDebug("Package name: " + mContext.getPackageName());
+  /**
+   * Same as {@link #queryPurchases}, but each page is verified and parsed on the pipeline
+   * thread while the next page is being fetched, so binder round-trips overlap with the
+   * CPU work. Pages still reach sink in order. At most {@link #MAX_PIPELINED_PAGES} pages
+   * are held waiting for the pipeline thread; if sink is slower than the service, fetching
+   * waits for it instead of piling pages up in memory.
+   */
+  int queryPurchasesPipelined(final String itemType, final PurchaseStreamListener sink)
+    throws JSONException, RemoteException {
+    logDebug("Querying owned items (pipelined), item type: ", itemType);
+    ArrayDeque<Future<Boolean>> pages = new ArrayDeque<Future<Boolean>>();
     boolean verificationFailed = false;
     String continueToken = null;
+    int pageCount = 0;
+
+    try {
+      do {
+        while (pages.size() >= MAX_PIPELINED_PAGES) {
+          if (!getPageResult(pages.peekFirst())) verificationFailed = true;
+          pages.removeFirst();
+        }
+
+        logDebug("Calling getPurchases with continuation token: ", continueToken);
+        Bundle ownedItems = callGetPurchases(itemType, continueToken);
+        pageCount++;
+        int response = checkPurchasesBundle(ownedItems);
+        if (response != BILLING_RESPONSE_RESULT_OK) return response;
+
+        final ArrayList<String> ownedSkus = ownedItems.getStringArrayList(
+          RESPONSE_INAPP_ITEM_LIST);
+        final ArrayList<String> purchaseDataList = ownedItems.getStringArrayList(
+          RESPONSE_INAPP_PURCHASE_DATA_LIST);
+        final ArrayList<String> signatureList = ownedItems.getStringArrayList(
+          RESPONSE_INAPP_SIGNATURE_LIST);
+        // The pipeline executor is single-threaded, so pages reach sink one at a time, in order.
+        pages.add(BillingExecutors.pipelineExecutor().submit(new Callable<Boolean>() {
+          public Boolean call() throws JSONException {
+            return addPurchasesPage(sink, itemType, ownedSkus, purchaseDataList, signatureList);
+          }
+        }));
+
+        continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
+        logDebug("Continuation token: ", continueToken);
+      } while (!TextUtils.isEmpty(continueToken));
+
+      while (!pages.isEmpty()) {
+        if (!getPageResult(pages.peekFirst())) verificationFailed = true;
+        pages.removeFirst();
+      }
+      return verificationFailed ? IABHELPER_VERIFICATION_FAILED : BILLING_RESPONSE_RESULT_OK;
+    } finally {
+      mMetrics.recordPurchaseQuery(pageCount);
+      // Only non-empty if we are bailing out early; the results are discarded then.
+      for (Future<Boolean> page : pages) {
+        page.cancel(false);
+      }
+    }
+  }
+
+  private boolean getPageResult(Future<Boolean> page) throws JSONException, RemoteException {
+    try {
+      return page.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while querying purchases.");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof JSONException) throw (JSONException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
 
-    do {
-      logDebug("Calling getPurchases with continuation token: " + continueToken);
-      Bundle ownedItems = mService.getPurchases(3, mContext.getPackageName(),
-        itemType, continueToken);
+  // Checks a getPurchases() response bundle; returns BILLING_RESPONSE_RESULT_OK if it
+  // can be processed.
+  int checkPurchasesBundle(Bundle ownedItems) {
+    if (mDebugLog) {
       logDebug(ownedItems.toString());
       logDebug(" Bundle "
         + "\n Contains ResponseCode : " + ownedItems.containsKey(RESPONSE_CODE)
@@ -915,62 +1767,91 @@ public class IabHelper {
         + "\n Contains RESPONSE_INAPP_SIGNATURE_LIST : " + ownedItems.containsKey(RESPONSE_INAPP_SIGNATURE_LIST)
         + "\n INAPP_CONTINUATION_TOKEN : " + ownedItems.containsKey(INAPP_CONTINUATION_TOKEN)
       );
-      int response = getResponseCodeFromBundle(ownedItems);
-      logDebug("Owned items response: " + String.valueOf(response));
-      if (response != BILLING_RESPONSE_RESULT_OK) {
-        logDebug("getPurchases() failed: " + getResponseDesc(response));
-        return response;
-      }
-      if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST)
-        || !ownedItems.containsKey(RESPONSE_INAPP_PURCHASE_DATA_LIST)
-        || !ownedItems.containsKey(RESPONSE_INAPP_SIGNATURE_LIST)) {
-        logError("Bundle returned from getPurchases() doesn't contain required fields.");
-        return IABHELPER_BAD_RESPONSE;
-      }
+    }
+    int response = getResponseCodeFromBundle(ownedItems);
+    if (mDebugLog) logDebug("Owned items response: " + String.valueOf(response));
+    if (response != BILLING_RESPONSE_RESULT_OK) {
+      if (mDebugLog) logDebug("getPurchases() failed: " + getResponseDesc(response));
+      return response;
+    }
+    if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST)
+      || !ownedItems.containsKey(RESPONSE_INAPP_PURCHASE_DATA_LIST)
+      || !ownedItems.containsKey(RESPONSE_INAPP_SIGNATURE_LIST)) {
+      logError("Bundle returned from getPurchases() doesn't contain required fields.");
+      return IABHELPER_BAD_RESPONSE;
+    }
+    return BILLING_RESPONSE_RESULT_OK;
+  }
 
-      ArrayList<String> ownedSkus = ownedItems.getStringArrayList(
-        RESPONSE_INAPP_ITEM_LIST);
-      ArrayList<String> purchaseDataList = ownedItems.getStringArrayList(
-        RESPONSE_INAPP_PURCHASE_DATA_LIST);
-      ArrayList<String> signatureList = ownedItems.getStringArrayList(
-        RESPONSE_INAPP_SIGNATURE_LIST);
-
-      for (int i = 0; i < purchaseDataList.size(); ++i) {
-        String purchaseData = purchaseDataList.get(i);
-        String signature = signatureList.get(i);
-        String sku = ownedSkus.get(i);
+  // Verifies and parses one page of getPurchases() results, and hands them to sink.
+  // Returns false if any purchase on the page failed verification (and was dropped).
+  boolean addPurchasesPage(PurchaseStreamListener sink, String itemType, List<String> ownedSkus,
+                           List<String> purchaseDataList, List<String> signatureList)
+    throws JSONException {
+    boolean allVerified = true;
+    boolean[] verified = verifyPurchases(purchaseDataList, signatureList);
+    for (int i = 0; i < purchaseDataList.size(); ++i) {
+      String purchaseData = purchaseDataList.get(i);
+      String signature = signatureList.get(i);
+      String sku = ownedSkus.get(i);
+      if (mDebugLog) {
         logDebug("sku : " + sku
           + " Purchase Data : " + purchaseData
           + " Signature : " + signature
         );
+      }
 
+      if (verified[i]) {
+        logDebug("Sku is owned: ", sku);
+        Purchase purchase = new Purchase(itemType, purchaseData, signature);
+        logDebug("=-=-=-=-= Purchase Info : ", purchase);
 
-        if (Security.verifyPurchase(mSignatureBase64, purchaseData, signature)) {
-          logDebug("Sku is owned: " + sku);
-          Purchase purchase = new Purchase(itemType, purchaseData, signature);
-          logDebug("=-=-=-=-= Purchase Info : " + purchase);
-
-          if (TextUtils.isEmpty(purchase.getToken())) {
-            logWarn("BUG: empty/null token!");
-            logDebug("Purchase data: " + purchaseData);
-          }
-
-          // Record ownership and token
-          inv.addPurchase(purchase);
-          logDebug(" Inventory Item : " + inv);
-        } else {
-          logWarn(" Purchase signature verification **FAILED**. Not adding item.");
-          logDebug("   Purchase data: " + purchaseData);
-          logDebug("   Signature: " + signature);
-          verificationFailed = true;
+        if (TextUtils.isEmpty(purchase.getToken())) {
+          logWarn("BUG: empty/null token!");
+          logDebug("Purchase data: ", purchaseData);
         }
+
+        // Record ownership and token
+        sink.onPurchase(purchase);
+      } else {
+        logWarn(" Purchase signature verification **FAILED**. Not adding item.");
+        mMetrics.recordVerificationFailures(1);
+        logDebug("   Purchase data: ", purchaseData);
+        logDebug("   Signature: ", signature);
+        allVerified = false;
       }
+    }
+    return allVerified;
+  }
 
-      continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
-      logDebug("Continuation token: " + continueToken);
-    } while (!TextUtils.isEmpty(continueToken));
+  // Verifies a purchase against mSignatureBase64, decoding the key only once per helper.
+  boolean verifyPurchase(String purchaseData, String signature) {
+    if (TextUtils.isEmpty(mSignatureBase64)) {
+      // Let Security report the missing key the same way it always has.
+      return Security.verifyPurchase(mSignatureBase64, purchaseData, signature);
+    }
+    return getVerifier().verifyPurchase(purchaseData, signature);
+  }
 
-    return verificationFailed ? IABHELPER_VERIFICATION_FAILED : BILLING_RESPONSE_RESULT_OK;
+  // Batch version of verifyPurchase; large pages are verified in parallel.
+  boolean[] verifyPurchases(List<String> purchaseDataList, List<String> signatureList) {
+    if (TextUtils.isEmpty(mSignatureBase64)) {
+      boolean[] verified = new boolean[purchaseDataList.size()];
+      for (int i = 0; i < verified.length; i++) {
+        verified[i] = verifyPurchase(purchaseDataList.get(i), signatureList.get(i));
+      }
+      return verified;
+    }
+    return getVerifier().verifyPurchases(purchaseDataList, signatureList);
+  }
+
+  Security.Verifier getVerifier() {
+    synchronized (mVerifierLock) {
+      if (mVerifier == null) {
+        mVerifier = Security.newVerifier(mSignatureBase64);
+      }
+      return mVerifier;
+    }
   }
 
   int querySkuDetails(String itemType, Inventory inv, List<String> moreSkus)
@@ -979,8 +1860,9 @@ public class IabHelper {
     ArrayList<String> skuList = new ArrayList<String>();
     skuList.addAll(inv.getAllOwnedSkus(itemType));
     if (moreSkus != null) {
+      Set<String> known = new HashSet<String>(skuList);
       for (String sku : moreSkus) {
-        if (!skuList.contains(sku)) {
+        if (known.add(sku)) {
           skuList.add(sku);
         }
       }
@@ -991,53 +1873,142 @@ public class IabHelper {
       return BILLING_RESPONSE_RESULT_OK;
     }
 
-    // Split the sku list in blocks of no more than 20 elements.
-    ArrayList<ArrayList<String>> packs = new ArrayList<ArrayList<String>>();
-    ArrayList<String> tempList;
-    int n = skuList.size() / 20;
-    int mod = skuList.size() % 20;
-    for (int i = 0; i < n; i++) {
-      tempList = new ArrayList<String>();
-      for (String s : skuList.subList(i * 20, i * 20 + 20)) {
-        tempList.add(s);
-      }
-      packs.add(tempList);
+    SkuDetailsCache cache = mSkuDetailsCache;
+    if (cache == null) {
+      return fetchSkuDetails(itemType, skuList, inv);
     }
-    if (mod != 0) {
-      tempList = new ArrayList<String>();
-      for (String s : skuList.subList(n * 20, n * 20 + mod)) {
-        tempList.add(s);
-      }
-      packs.add(tempList);
-    }
-
-    for (ArrayList<String> skuPartList : packs) {
-      Bundle querySkus = new Bundle();
-      querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skuPartList);
-      Bundle skuDetails = mService.getSkuDetails(3, mContext.getPackageName(),
-        itemType, querySkus);
-
-      if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
-        int response = getResponseCodeFromBundle(skuDetails);
-        if (response != BILLING_RESPONSE_RESULT_OK) {
-          logDebug("getSkuDetails() failed: " + getResponseDesc(response));
-          return response;
-        } else {
-          logError("getSkuDetails() returned a bundle with neither an error nor a detail list.");
-          return IABHELPER_BAD_RESPONSE;
+
+    List<String> stale = new ArrayList<String>();
+    List<String> toFetch = cache.fill(itemType, skuList, inv, mServeStaleSkuDetails, stale);
+    if (mDebugLog) {
+      logDebug("SKU details from cache: " + (skuList.size() - toFetch.size())
+        + ", stale: " + stale.size() + ", to fetch: " + toFetch.size());
+    }
+    if (!stale.isEmpty()) {
+      refreshSkuDetailsInBackground(cache, itemType, stale);
+    }
+    if (toFetch.isEmpty()) {
+      return BILLING_RESPONSE_RESULT_OK;
+    }
+
+    Inventory fetched = new Inventory();
+    int response = fetchSkuDetails(itemType, toFetch, fetched);
+    cache.putAll(fetched.mSkuMap.values());
+    inv.addAll(fetched);
+    return response;
+  }
+
+  // Re-fetches stale cached SKU details without blocking the caller. This is a read
+  // operation like any other, so dispose() waits for it (or refuses, while it runs).
+  void refreshSkuDetailsInBackground(final SkuDetailsCache cache, final String itemType,
+                                    List<String> skus) {
+    final List<String> refreshing = cache.startRefresh(itemType, skus);
+    if (refreshing.isEmpty()) return;
+
+    mScheduler.submit(new OperationScheduler.Operation(OperationScheduler.KIND_READ,
+      "refresh SKU details") {
+      public void run() {
+        try {
+          if (mDisposed) return;
+          Inventory fetched = new Inventory();
+          int response = fetchSkuDetails(itemType, refreshing, fetched);
+          if (mDisposed) return;
+          cache.putAll(fetched.mSkuMap.values());
+          if (response != BILLING_RESPONSE_RESULT_OK) {
+            if (mDebugLog) logDebug("Background SKU details refresh failed: " + getResponseDesc(response));
+          }
+        } catch (RemoteException e) {
+          logWarn("Remote exception while refreshing SKU details.");
+        } catch (JSONException e) {
+          logWarn("Error parsing JSON response while refreshing SKU details.");
+        } finally {
+          cache.finishRefresh(itemType, refreshing);
+          mScheduler.finish(this);
         }
       }
+    }, mExecutor);
+  }
 
-      ArrayList<String> responseList = skuDetails.getStringArrayList(
-        RESPONSE_GET_SKU_DETAILS_LIST);
+  /**
+   * Fetches details for skus in packs of {@link #SKU_DETAILS_PACK_SIZE}, with up to
+   * {@link #MAX_PARALLEL_SKU_DETAILS_CALLS} getSkuDetails() calls in flight, and adds them
+   * to inv. As with sequential calls, the first failing pack (in list order) determines
+   * the result; the packs before it are still added.
+   */
+  int fetchSkuDetails(final String itemType, List<String> skuList, Inventory inv)
+    throws RemoteException, JSONException {
+    final List<List<String>> packs = splitIntoPacks(skuList, SKU_DETAILS_PACK_SIZE);
+    final int count = packs.size();
+    final int[] responses = new int[count];
+    final Exception[] errors = new Exception[count];
+    final List<List<SkuDetails>> details = new ArrayList<List<SkuDetails>>(count);
+    for (int i = 0; i < count; i++) {
+      details.add(new ArrayList<SkuDetails>());
+    }
+
+    BillingExecutors.forEachIndex(BillingExecutors.ioPool(), count,
+      MAX_PARALLEL_SKU_DETAILS_CALLS, new BillingExecutors.IndexedTask() {
+        public boolean run(int index) {
+          try {
+            responses[index] = fetchSkuDetailsPack(itemType, packs.get(index), details.get(index));
+          } catch (RemoteException e) {
+            errors[index] = e;
+          } catch (JSONException e) {
+            errors[index] = e;
+          }
+          // No point in sending more packs once one of them has failed.
+          return errors[index] == null && responses[index] == BILLING_RESPONSE_RESULT_OK;
+        }
+      });
 
-      for (String thisResponse : responseList) {
-        SkuDetails d = new SkuDetails(itemType, thisResponse);
-        logDebug("Got sku details: " + d);
+    for (int i = 0; i < count; i++) {
+      if (errors[i] instanceof RemoteException) throw (RemoteException) errors[i];
+      if (errors[i] instanceof JSONException) throw (JSONException) errors[i];
+      if (responses[i] != BILLING_RESPONSE_RESULT_OK) return responses[i];
+      for (SkuDetails d : details.get(i)) {
         inv.addSkuDetails(d);
       }
     }
+    return BILLING_RESPONSE_RESULT_OK;
+  }
+
+  // Splits skus into consecutive views of no more than packSize elements.
+  static List<List<String>> splitIntoPacks(List<String> skus, int packSize) {
+    int size = skus.size();
+    List<List<String>> packs = new ArrayList<List<String>>((size + packSize - 1) / packSize);
+    for (int i = 0; i < size; i += packSize) {
+      packs.add(skus.subList(i, Math.min(size, i + packSize)));
+    }
+    return packs;
+  }
+
+  // Calls getSkuDetails() for a single pack, adding the parsed details to out.
+  int fetchSkuDetailsPack(String itemType, List<String> skuPartList, List<SkuDetails> out)
+    throws RemoteException, JSONException {
+    Bundle querySkus = new Bundle();
+    // The binder interface needs an ArrayList, so this is where the view gets copied.
+    querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, new ArrayList<String>(skuPartList));
+    Bundle skuDetails = callGetSkuDetails(itemType, querySkus);
+
+    if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
+      int response = getResponseCodeFromBundle(skuDetails);
+      if (response != BILLING_RESPONSE_RESULT_OK) {
+        if (mDebugLog) logDebug("getSkuDetails() failed: " + getResponseDesc(response));
+        return response;
+      } else {
+        logError("getSkuDetails() returned a bundle with neither an error nor a detail list.");
+        return IABHELPER_BAD_RESPONSE;
+      }
+    }
+
+    ArrayList<String> responseList = skuDetails.getStringArrayList(
+      RESPONSE_GET_SKU_DETAILS_LIST);
 
+    for (String thisResponse : responseList) {
+      SkuDetails d = new SkuDetails(itemType, thisResponse);
+      logDebug("Got sku details: ", d);
+      out.add(d);
+    }
     return BILLING_RESPONSE_RESULT_OK;
   }
 
@@ -1045,22 +2016,17 @@ public class IabHelper {
                             final OnConsumeFinishedListener singleListener,
                             final OnConsumeMultiFinishedListener multiListener)
     throws IabAsyncInProgressException {
-    final Handler handler = new Handler();
-    flagStartAsync("consume");
-    (new Thread(new Runnable() {
+    final Handler handler = callbackHandler();
+    mScheduler.submit(new OperationScheduler.Operation(OperationScheduler.KIND_CONSUME,
+      "consume") {
       public void run() {
-        final List<IabResult> results = new ArrayList<IabResult>();
-        for (Purchase purchase : purchases) {
-          try {
-            consume(purchase);
-            results.add(new IabResult(BILLING_RESPONSE_RESULT_OK,
-              "Successful consume of sku " + purchase.getSku()));
-          } catch (IabException ex) {
-            results.add(ex.getResult());
-          }
+        final List<IabResult> results;
+        try {
+          results = consumeBatch(purchases);
+        } finally {
+          mScheduler.finish(this);
         }
 
-        flagEndAsync();
         if (!mDisposed && singleListener != null) {
           handler.post(new Runnable() {
             public void run() {
@@ -1076,19 +2042,32 @@ public class IabHelper {
           });
         }
       }
-    })).start();
+    }, mExecutor);
   }
 
+  // All logging goes through Logger, which writes on its own thread.
   void logDebug(String msg) {
-    if (mDebugLog) Log.d(mDebugTag, msg);
+    if (mDebugLog) Logger.debug(mDebugTag, msg);
+  }
+
+  // The overloads below only build the message when debug logging is on (and then on the
+  // Logger thread), so hot paths can log without allocating anything when it's off. Messages
+  // that need more work than that (or primitives, which would be boxed) are guarded with an
+  // explicit mDebugLog check.
+  void logDebug(String msg, Object arg) {
+    if (mDebugLog) Logger.debug(mDebugTag, "%s%s", msg, arg);
+  }
+
+  void logDebug(String msg1, Object arg1, String msg2, Object arg2) {
+    if (mDebugLog) Logger.debug(mDebugTag, "%s%s%s%s", msg1, arg1, msg2, arg2);
   }
 
   void logError(String msg) {
-    Log.e(mDebugTag, "In-app billing error: " + msg);
+    Logger.error(mDebugTag, "In-app billing error: " + msg);
   }
 
   void logWarn(String msg) {
-    Log.w(mDebugTag, "In-app billing warning: " + msg);
+    Logger.warning(mDebugTag, "In-app billing warning: %s", msg);
   }
 
   /**
@@ -1101,7 +2080,7 @@ public class IabHelper {
   public String unlockUserAchievement(String packageName, String achievementId) {
     logDebug("unlockUserAchievement: " + packageName + " achievementId : " + achievementId);
     try {
-      final String achievement = mService.unlockAchievement(packageName, achievementId);
+      final String achievement = awaitService().unlockAchievement(packageName, achievementId);
       logDebug("unlockUserAchievement : " + achievement);
       return achievement;
     } catch (RemoteException e) {
@@ -1122,7 +2101,7 @@ public class IabHelper {
   public void incrementAchievement(String packageName, String achievementId, int numSteps) {
     logDebug("incrementAchievement: " + packageName + " achievementID : " + achievementId + " numSteps: " + numSteps);
     try {
-      final String achievement = mService.incrementAchievement(packageName, achievementId, numSteps);
+      final String achievement = awaitService().incrementAchievement(packageName, achievementId, numSteps);
       logDebug("incrementAchievement : " + achievement);
     } catch (RemoteException e) {
       e.printStackTrace();
@@ -1139,10 +2118,10 @@ public class IabHelper {
    */
   public void submitScore(String packageName, String scoreId, int scoreValue) throws RemoteException {
     logDebug("submitScore() called with: packageName = [" + packageName + "], scoreId = [" + scoreId + "], scoreValue = [" + scoreValue + "]");
-    if (!mSetupDone && mServiceConn == null) {
+    if (!mSetupDone && mConnection == null) {
       throw new IllegalStateException("Hope Not Found !!!");
     }
-    final String submitScoreResult = mService.submitScore(packageName, scoreId, scoreValue);
+    final String submitScoreResult = awaitService().submitScore(packageName, scoreId, scoreValue);
     logDebug("Submit the score result : " + submitScoreResult);
   }
 
@@ -1157,10 +2136,10 @@ public class IabHelper {
   public void openLeaderBoard(String packageName, String scoreId, String scope) throws IllegalStateException, RemoteException {
     logDebug("openLeaderBoard() called with: packageName = ["
       + packageName + "], scoreId = [" + scoreId + "], scope = [" + scope + "]");
-    if (!mSetupDone && mServiceConn == null) {
+    if (!mSetupDone && mConnection == null) {
       throw new IllegalStateException("Hope Not Found !!!");
     }
-    mService.openLeaderBoard(packageName, scoreId, scope);
+    awaitService().openLeaderBoard(packageName, scoreId, scope);
   }
 
   /**
@@ -1205,6 +2184,43 @@ public class IabHelper {
     void onQueryInventoryFinished(IabResult result, Inventory inv);
   }
 
+  /**
+   * Listener that notifies what changed between two inventory queries.
+   */
+  public interface OnInventoryDeltaListener {
+    /**
+     * Called when an inventory query found purchases added, removed or changed.
+     *
+     * @param delta What changed since the previous query.
+     * @param inv   The new inventory.
+     */
+    void onInventoryDelta(InventoryDelta delta, Inventory inv);
+  }
+
+  /**
+   * Receives owned purchases one at a time, see {@link IabHelper#streamPurchases}.
+   */
+  public interface PurchaseStreamListener {
+    /**
+     * Called for each owned purchase that passed verification.
+     *
+     * @param purchase The purchase.
+     */
+    void onPurchase(Purchase purchase);
+  }
+
+  /**
+   * Callback that notifies when an asynchronous purchase stream finishes.
+   */
+  public interface OnPurchaseStreamFinishedListener {
+    /**
+     * Called after the last purchase of the stream has been delivered.
+     *
+     * @param result The result of the operation.
+     */
+    void onPurchaseStreamFinished(IabResult result);
+  }
+
   /**
    * Callback that notifies when a consumption operation finishes.
    */
@@ -1218,6 +2234,21 @@ public class IabHelper {
     void onConsumeFinished(Purchase purchase, IabResult result);
   }
 
+  /**
+   * Callback that hands over the consumptions recovered from the consume journal at setup.
+   * See {@link IabHelper#enableConsumeJournal}.
+   */
+  public interface OnConsumeRecoveredListener {
+    /**
+     * Called on the UI thread with the purchases that were consumed on an earlier run but
+     * never acknowledged. Apply each one, then call
+     * {@link IabHelper#acknowledgeConsumption} for it.
+     *
+     * @param purchases The recovered purchases.
+     */
+    void onConsumeRecovered(List<Purchase> purchases);
+  }
+
   /**
    * Callback that notifies when a multi-item consumption operation finishes.
    */
@@ -1233,8 +2264,9 @@ public class IabHelper {
   }
 
   /**
-   * Exception thrown when the requested operation cannot be started because an async operation
-   * is still in progress.
+   * Exception thrown when the requested operation cannot be performed because async
+   * operations are still in progress. Since conflicting operations are now queued, this is
+   * only thrown by {@link #dispose}; the other methods still declare it for compatibility.
    */
   public static class IabAsyncInProgressException extends Exception {
     public IabAsyncInProgressException(String message) {
@@ -0,0 +1,76 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor wrapper that keeps track of how many tasks are waiting or running, and how
+ * long they waited and ran. IabHelper runs all of its background work through one of
+ * these; see {@link IabHelper#setExecutor} and {@link IabHelper#getExecutorStats}.
+ */
+class InstrumentedExecutor implements Executor {
+    private final Executor mDelegate;
+
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mTotalWaitMillis = new AtomicLong();
+    private final AtomicLong mMaxWaitMillis = new AtomicLong();
+    private final AtomicLong mTotalRunMillis = new AtomicLong();
+    private final AtomicLong mMaxRunMillis = new AtomicLong();
+
+    InstrumentedExecutor(Executor delegate) {
+        mDelegate = delegate;
+    }
+
+    Executor getDelegate() {
+        return mDelegate;
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        final long enqueuedAt = SystemClock.elapsedRealtime();
+        mQueued.incrementAndGet();
+        try {
+            mDelegate.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long startedAt = SystemClock.elapsedRealtime();
+                    mQueued.decrementAndGet();
+                    mRunning.incrementAndGet();
+                    record(mTotalWaitMillis, mMaxWaitMillis, startedAt - enqueuedAt);
+                    try {
+                        task.run();
+                    } finally {
+                        mRunning.decrementAndGet();
+                        mCompleted.incrementAndGet();
+                        record(mTotalRunMillis, mMaxRunMillis,
+                                SystemClock.elapsedRealtime() - startedAt);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // Rejected; it will never run.
+            mQueued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long millis) {
+        total.addAndGet(millis);
+        long current;
+        while (millis > (current = max.get()) && !max.compareAndSet(current, millis)) {
+            // Retry until we either win or someone else recorded a larger value.
+        }
+    }
+
+    ExecutorStats getStats() {
+        long completed = mCompleted.get();
+        return new ExecutorStats(mQueued.get(), mRunning.get(), completed,
+                completed == 0 ? 0 : mTotalWaitMillis.get() / completed, mMaxWaitMillis.get(),
+                completed == 0 ? 0 : mTotalRunMillis.get() / completed, mMaxRunMillis.get());
+    }
+}
@@ -104,6 +104,15 @@ public class Inventory {
         mPurchaseMap.put(p.getSku(), p);
     }
 
+    /**
+     * Adds all details and purchases of another inventory, replacing entries for the
+     * same product ID.
+     */
+    void addAll(Inventory other) {
+        mSkuMap.putAll(other.mSkuMap);
+        mPurchaseMap.putAll(other.mPurchaseMap);
+    }
+
 
     @Override
     public String toString() {
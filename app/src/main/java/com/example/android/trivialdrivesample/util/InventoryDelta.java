@@ -0,0 +1,70 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The difference in purchases between two inventories, keyed by product ID.
+ * Delivered by {@link IabHelper} to its {@link IabHelper.OnInventoryDeltaListener}
+ * after each inventory query, so that callers only need to act on what changed.
+ */
+public class InventoryDelta {
+    private final List<Purchase> mAdded;
+    private final List<Purchase> mRemoved;
+    private final List<Purchase> mChanged;
+
+    InventoryDelta(List<Purchase> added, List<Purchase> removed, List<Purchase> changed) {
+        mAdded = Collections.unmodifiableList(added);
+        mRemoved = Collections.unmodifiableList(removed);
+        mChanged = Collections.unmodifiableList(changed);
+    }
+
+    /**
+     * Computes the delta from previous to current. A null previous inventory counts as
+     * empty, so every purchase in current is reported as added.
+     */
+    static InventoryDelta between(Inventory previous, Inventory current) {
+        List<Purchase> added = new ArrayList<Purchase>();
+        List<Purchase> removed = new ArrayList<Purchase>();
+        List<Purchase> changed = new ArrayList<Purchase>();
+        Map<String, Purchase> before = previous == null
+                ? Collections.<String, Purchase>emptyMap() : previous.mPurchaseMap;
+        Map<String, Purchase> after = current.mPurchaseMap;
+
+        for (Purchase p : after.values()) {
+            Purchase old = before.get(p.getSku());
+            if (old == null) {
+                added.add(p);
+            } else if (!old.getItemType().equals(p.getItemType())
+                    || !old.getOriginalJson().equals(p.getOriginalJson())) {
+                changed.add(p);
+            }
+        }
+        for (Purchase old : before.values()) {
+            if (!after.containsKey(old.getSku())) removed.add(old);
+        }
+        return new InventoryDelta(added, removed, changed);
+    }
+
+    /** Purchases that are new since the previous inventory. */
+    public List<Purchase> getAdded() { return mAdded; }
+
+    /** Purchases of the previous inventory that are no longer owned (e.g. consumed). */
+    public List<Purchase> getRemoved() { return mRemoved; }
+
+    /** Purchases whose data changed (e.g. a renewed subscription), in their new version. */
+    public List<Purchase> getChanged() { return mChanged; }
+
+    /** Returns whether nothing was added, removed or changed. */
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "InventoryDelta{added=" + mAdded.size() + ", removed=" + mRemoved.size()
+                + ", changed=" + mChanged.size() + '}';
+    }
+}
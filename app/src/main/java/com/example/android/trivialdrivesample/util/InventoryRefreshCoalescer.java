@@ -0,0 +1,100 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Sits between {@link IabBroadcastReceiver} and {@link IabHelper} and turns bursts of
+ * PURCHASES_UPDATED broadcasts into as few inventory queries as possible.
+ * <p>
+ * The first request starts a window of the configured length; requests that arrive
+ * during the window are merged into the single query that runs when it closes. Requests
+ * that arrive while that query is running are merged into exactly one follow-up query.
+ * <p>
+ * This class must be used from the UI thread, which is where broadcasts and
+ * {@link IabHelper} callbacks are delivered. Call {@link #cancel} when disposing of the helper.
+ */
+public class InventoryRefreshCoalescer implements IabBroadcastReceiver.IabBroadcastListener {
+    private final IabHelper mHelper;
+    private final long mWindowMillis;
+    private final IabHelper.QueryInventoryFinishedListener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Is a query waiting for its window to close?
+    private boolean mScheduled = false;
+    // Is a query running?
+    private boolean mRunning = false;
+    // Did a request arrive while the query was running?
+    private boolean mPending = false;
+    private boolean mCancelled = false;
+
+    /**
+     * @param helper       The helper to query; it must be set up.
+     * @param windowMillis How long to wait for more requests before querying.
+     * @param listener     Notified with the result of every query that runs.
+     */
+    public InventoryRefreshCoalescer(IabHelper helper, long windowMillis,
+                                     IabHelper.QueryInventoryFinishedListener listener) {
+        mHelper = helper;
+        mWindowMillis = windowMillis;
+        mListener = listener;
+    }
+
+    @Override
+    public void receivedBroadcast() {
+        requestRefresh();
+    }
+
+    /**
+     * Asks for an inventory refresh, merging it with any refresh already scheduled.
+     */
+    public void requestRefresh() {
+        if (mCancelled) return;
+        if (mRunning) {
+            mPending = true;
+        } else if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mRefresh, mWindowMillis);
+        }
+    }
+
+    /**
+     * Drops any scheduled refresh; no further queries are started, and the result of a
+     * running one is not delivered.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mScheduled = false;
+        mPending = false;
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled = false;
+            if (mCancelled) return;
+            mRunning = true;
+            try {
+                mHelper.queryInventoryAsync(mRefreshFinished);
+            } catch (IabHelper.IabAsyncInProgressException e) {
+                mHelper.logDebug("Could not start inventory refresh: ", e.getMessage());
+                mRunning = false;
+            }
+        }
+    };
+
+    private final IabHelper.QueryInventoryFinishedListener mRefreshFinished =
+            new IabHelper.QueryInventoryFinishedListener() {
+                @Override
+                public void onQueryInventoryFinished(IabResult result, Inventory inv) {
+                    mRunning = false;
+                    if (mCancelled) return;
+                    if (mListener != null) mListener.onQueryInventoryFinished(result, inv);
+                    if (mPending) {
+                        mPending = false;
+                        requestRefresh();
+                    }
+                }
+            };
+}
@@ -0,0 +1,136 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps the last known {@link Inventory} in a small private file, so it can be shown
+ * straight away on the next start, before the billing service is even bound.
+ * <p>
+ * Only the original purchase data, signatures and SKU detail JSON are stored; everything
+ * else is parsed again on load. The stored signatures are NOT trusted: callers must
+ * re-verify the purchases of a loaded snapshot (see {@link IabHelper#loadInventorySnapshot}).
+ */
+class InventorySnapshotStore {
+    private static final String TAG = "IABUtil/Snapshot";
+    private static final String FILE_NAME = "iab_inventory.snapshot";
+    private static final int MAGIC = 0x49414231; // "IAB1"
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final File mTempFile;
+
+    InventorySnapshotStore(Context ctx) {
+        File dir = ctx.getFilesDir();
+        mFile = new File(dir, FILE_NAME);
+        mTempFile = new File(dir, FILE_NAME + ".tmp");
+    }
+
+    /**
+     * Replaces the stored snapshot with inv. The file is written in full and then
+     * renamed over the old one, so a crash never leaves a half-written snapshot behind.
+     */
+    synchronized void save(Inventory inv) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mTempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(inv.mPurchaseMap.size());
+            for (Purchase p : inv.mPurchaseMap.values()) {
+                writeString(out, p.getItemType());
+                writeString(out, p.getOriginalJson());
+                writeString(out, p.getSignature());
+            }
+            out.writeInt(inv.mSkuMap.size());
+            for (SkuDetails d : inv.mSkuMap.values()) {
+                writeString(out, d.getItemType());
+                writeString(out, d.getOriginalJson());
+            }
+        } finally {
+            out.close();
+        }
+        if (!mTempFile.renameTo(mFile)) {
+            mTempFile.delete();
+            throw new IOException("Could not replace " + mFile);
+        }
+    }
+
+    /**
+     * Reads the stored snapshot. Returns null if there is none, or if it can't be read.
+     * Purchase signatures have not been verified.
+     */
+    synchronized Inventory load() {
+        if (!mFile.exists()) return null;
+        DataInputStream in = null;
+        try {
+            long maxLength = mFile.length();
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring snapshot with unknown format.");
+                return null;
+            }
+            Inventory inv = new Inventory();
+            int purchases = in.readInt();
+            for (int i = 0; i < purchases; i++) {
+                String itemType = readString(in, maxLength);
+                String json = readString(in, maxLength);
+                String signature = readString(in, maxLength);
+                inv.addPurchase(new Purchase(itemType, json, signature));
+            }
+            int details = in.readInt();
+            for (int i = 0; i < details; i++) {
+                String itemType = readString(in, maxLength);
+                inv.addSkuDetails(new SkuDetails(itemType, readString(in, maxLength)));
+            }
+            return inv;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read inventory snapshot.");
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to parse inventory snapshot.");
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing useful to do.
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the stored snapshot.
+     */
+    synchronized void clear() {
+        mFile.delete();
+        mTempFile.delete();
+    }
+
+    // Unlike writeUTF, not limited to 64KB.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = (s == null ? "" : s).getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, long maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) throw new IOException("Corrupt snapshot.");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.Arrays;
+
+/**
+ * Minimal JSON scanner, allocating nothing per token, used by {@link Purchase} and
+ * {@link SkuDetails} to check that their JSON is well formed and pull out a few top-level
+ * fields (such as the product ID) in a single pass, without building a JSONObject. The
+ * remaining fields are parsed with org.json only when they are first asked for.
+ * <p>
+ * The scanner is strict: anything it accepts is also accepted by org.json. When it
+ * doesn't accept something, callers fall back to org.json, which may be more lenient
+ * (or throw the JSONException the caller would have thrown anyway).
+ */
+final class JsonScanner {
+    private final String mJson;
+    private final String[] mKeys;
+    private int mPos;
+    // Where each key's value is, by index into mKeys; a start of -1 means not found
+    private final int[] mValueStart;
+    private final int[] mValueEnd;
+    private final boolean[] mValueIsString;
+
+    private JsonScanner(String json, String[] keys) {
+        mJson = json;
+        mKeys = keys;
+        mValueStart = new int[keys.length];
+        mValueEnd = new int[keys.length];
+        mValueIsString = new boolean[keys.length];
+        Arrays.fill(mValueStart, -1);
+    }
+
+    /**
+     * Checks that json is a single well-formed JSON object and returns the value of its
+     * top-level field key, as {@code JSONObject.optString(key)} would: "" if there is no
+     * such field. Returns null if json couldn't be scanned.
+     */
+    static String findField(String json, String key) {
+        String[] values = findFields(json, key);
+        if (values == null) return null;
+        return values[0] != null ? values[0] : "";
+    }
+
+    /**
+     * Like {@link #findField}, but finds several top-level fields in one pass. Returns
+     * their values in the order of keys, with null for a field that is missing (or is
+     * JSON null), or null instead of the array if json couldn't be scanned.
+     */
+    static String[] findFields(String json, String... keys) {
+        if (json == null) return null;
+        JsonScanner s = new JsonScanner(json, keys);
+        if (!s.scanDocument()) return null;
+        String[] values = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            int start = s.mValueStart[i];
+            if (start < 0) continue;
+            if (s.mValueIsString[i]) {
+                values[i] = s.decodeString(start, s.mValueEnd[i]);
+            } else if (!json.startsWith("null", start)) {
+                values[i] = json.substring(start, s.mValueEnd[i]);
+            }
+        }
+        return values;
+    }
+
+    private boolean scanDocument() {
+        skipWhitespace();
+        if (!scanObject(true)) return false;
+        skipWhitespace();
+        return mPos == mJson.length();
+    }
+
+    private boolean scanValue() {
+        if (mPos >= mJson.length()) return false;
+        char c = mJson.charAt(mPos);
+        switch (c) {
+            case '{':
+                return scanObject(false);
+            case '[':
+                return scanArray();
+            case '"':
+                return scanString();
+            case 't':
+                return scanLiteral("true");
+            case 'f':
+                return scanLiteral("false");
+            case 'n':
+                return scanLiteral("null");
+            default:
+                return scanNumber();
+        }
+    }
+
+    private boolean scanObject(boolean topLevel) {
+        if (!consume('{')) return false;
+        skipWhitespace();
+        if (consume('}')) return true;
+        while (true) {
+            skipWhitespace();
+            int keyStart = mPos;
+            if (!scanString()) return false;
+            int keyEnd = mPos;
+            skipWhitespace();
+            if (!consume(':')) return false;
+            skipWhitespace();
+            int valueStart = mPos;
+            boolean isString = valueStart < mJson.length() && mJson.charAt(valueStart) == '"';
+            if (!scanValue()) return false;
+            int key = topLevel ? keyIndex(keyStart, keyEnd) : -1;
+            if (key >= 0) {
+                // Like org.json, the last occurrence of a duplicate key wins.
+                mValueStart[key] = isString ? valueStart + 1 : valueStart;
+                mValueEnd[key] = isString ? mPos - 1 : mPos;
+                mValueIsString[key] = isString;
+            }
+            skipWhitespace();
+            if (consume('}')) return true;
+            if (!consume(',')) return false;
+        }
+    }
+
+    private boolean scanArray() {
+        if (!consume('[')) return false;
+        skipWhitespace();
+        if (consume(']')) return true;
+        while (true) {
+            skipWhitespace();
+            if (!scanValue()) return false;
+            skipWhitespace();
+            if (consume(']')) return true;
+            if (!consume(',')) return false;
+        }
+    }
+
+    private boolean scanString() {
+        if (!consume('"')) return false;
+        int length = mJson.length();
+        while (mPos < length) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"') return true;
+            if (c == '\\') {
+                if (mPos >= length) return false;
+                char e = mJson.charAt(mPos++);
+                if (e == 'u') {
+                    if (mPos + 4 > length) return false;
+                    for (int i = 0; i < 4; i++) {
+                        if (Character.digit(mJson.charAt(mPos++), 16) < 0) return false;
+                    }
+                } else if ("\"\\/bfnrt".indexOf(e) < 0) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean scanNumber() {
+        consume('-');
+        if (scanDigits() == 0) return false;
+        if (consume('.') && scanDigits() == 0) return false;
+        if (consume('e') || consume('E')) {
+            if (!consume('+')) consume('-');
+            if (scanDigits() == 0) return false;
+        }
+        return true;
+    }
+
+    private int scanDigits() {
+        int start = mPos;
+        while (mPos < mJson.length() && mJson.charAt(mPos) >= '0' && mJson.charAt(mPos) <= '9') {
+            mPos++;
+        }
+        return mPos - start;
+    }
+
+    private boolean scanLiteral(String literal) {
+        if (!mJson.startsWith(literal, mPos)) return false;
+        mPos += literal.length();
+        return true;
+    }
+
+    private boolean consume(char c) {
+        if (mPos < mJson.length() && mJson.charAt(mPos) == c) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mJson.length()) {
+            char c = mJson.charAt(mPos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return;
+            mPos++;
+        }
+    }
+
+    // Which of mKeys does the string token [start, end), quotes included, equal? Returns -1
+    // for none. Keys written with escapes are decoded first, as org.json would.
+    private int keyIndex(int start, int end) {
+        String decoded = null;
+        int backslash = mJson.indexOf('\\', start + 1);
+        if (backslash >= 0 && backslash < end - 1) decoded = decodeString(start + 1, end - 1);
+        for (int i = 0; i < mKeys.length; i++) {
+            String key = mKeys[i];
+            if (decoded != null ? decoded.equals(key)
+                    : end - start - 2 == key.length() && mJson.regionMatches(start + 1, key, 0, key.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Decodes the (already validated) string contents [start, end).
+    private String decodeString(int start, int end) {
+        int backslash = mJson.indexOf('\\', start);
+        if (backslash < 0 || backslash >= end) return mJson.substring(start, end);
+
+        StringBuilder sb = new StringBuilder(end - start);
+        sb.append(mJson, start, backslash);
+        for (int i = backslash; i < end; i++) {
+            char c = mJson.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            char e = mJson.charAt(++i);
+            switch (e) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(mJson.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default: sb.append(e); break;
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -1,24 +1,214 @@
 package com.example.android.trivialdrivesample.util;
 
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * @Author Ehsan Abbasi for hope-trivial-driver
  * Create time: 26/04/2020
+ * <p>
+ * Leveled, asynchronous logging. Callers only pay for a level check and, if the message is
+ * loggable, one small record put into a lock-free ring buffer; formatting and the write to
+ * {@link Log} happen on a background writer thread. When the buffer is full, or a tag logs
+ * more than {@link #setRateLimit its rate limit} per second, messages are dropped and the
+ * writer reports how many. Errors are written straight through, so they're never lost.
+ * <p>
+ * Formats use {@link String#format} syntax and are only applied to loggable messages.
  */
 public class Logger {
 
-  private static final String splitterForLogs = "->\n---------------------------------\n";
+  private static final int BUFFER_SIZE = 512; // must be a power of two
+  private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+  private static final long WRITER_IDLE_PARK_NANOS = 500 * 1000 * 1000L;
+  private static final long RATE_WINDOW_MILLIS = 1000;
+
+  private static volatile int sLevel = Log.DEBUG;
+  private static volatile int sRateLimit = 100;
+
+  // Ring buffer: producers claim slots by advancing sHead, the writer empties them and
+  // advances sTail. A slot is only reused once the writer has cleared it.
+  private static final AtomicReferenceArray<Record> sBuffer = new AtomicReferenceArray<Record>(BUFFER_SIZE);
+  private static final AtomicLong sHead = new AtomicLong();
+  private static final AtomicLong sTail = new AtomicLong();
+  private static final AtomicInteger sDropped = new AtomicInteger();
+  private static final ConcurrentHashMap<String, RateWindow> sRates = new ConcurrentHashMap<String, RateWindow>();
+  private static final AtomicBoolean sWriterStarted = new AtomicBoolean();
+  private static volatile Thread sWriter;
+  private static volatile boolean sWriterParked;
+
+  private static final class Record {
+    final int mLevel;
+    final String mTag;
+    final String mFormat;
+    final Object[] mArgs;
+
+    Record(int level, String tag, String format, Object[] args) {
+      mLevel = level;
+      mTag = tag;
+      mFormat = format;
+      mArgs = args;
+    }
+
+    String message() {
+      if (mArgs == null) return mFormat;
+      try {
+        return String.format(Locale.US, mFormat, mArgs);
+      } catch (RuntimeException e) {
+        return mFormat + " (bad format: " + e.getMessage() + ")";
+      }
+    }
+  }
+
+  // Fixed one-second window of how many messages a tag has logged.
+  private static final class RateWindow {
+    final AtomicLong mStart = new AtomicLong();
+    final AtomicInteger mCount = new AtomicInteger();
+  }
+
+  /**
+   * Sets the lowest level that is logged, one of the {@link Log} priorities
+   * ({@link Log#VERBOSE} to {@link Log#ERROR}). Defaults to {@link Log#DEBUG}.
+   */
+  public static void setLevel(int level) {
+    sLevel = level;
+  }
+
+  /**
+   * Sets how many messages below {@link Log#ERROR} a tag may log per second; the rest are
+   * dropped. 0 or less disables rate limiting.
+   */
+  public static void setRateLimit(int messagesPerSecond) {
+    sRateLimit = messagesPerSecond;
+  }
+
+  public static boolean isLoggable(int level) {
+    return level >= sLevel;
+  }
 
   public static void debug(String tag, String message) {
-    Log.d(tag, splitterForLogs + message + splitterForLogs);
+    log(Log.DEBUG, tag, message, null);
+  }
+
+  public static void debug(String tag, String format, Object arg) {
+    if (isLoggable(Log.DEBUG)) log(Log.DEBUG, tag, format, new Object[]{arg});
+  }
+
+  public static void debug(String tag, String format, Object arg1, Object arg2) {
+    if (isLoggable(Log.DEBUG)) log(Log.DEBUG, tag, format, new Object[]{arg1, arg2});
+  }
+
+  public static void debug(String tag, String format, Object... args) {
+    if (isLoggable(Log.DEBUG)) log(Log.DEBUG, tag, format, args);
   }
 
   public static void error(String tag, String message) {
-    Log.e(tag, splitterForLogs + message + splitterForLogs);
+    log(Log.ERROR, tag, message, null);
+  }
+
+  public static void error(String tag, String message, Throwable tr) {
+    if (isLoggable(Log.ERROR)) Log.e(tag, message, tr);
   }
 
   public static void warning(String tag, String message) {
-    Log.w(tag, splitterForLogs + message + splitterForLogs);
+    log(Log.WARN, tag, message, null);
+  }
+
+  public static void warning(String tag, String format, Object arg) {
+    if (isLoggable(Log.WARN)) log(Log.WARN, tag, format, new Object[]{arg});
+  }
+
+  private static void log(int level, String tag, String format, Object[] args) {
+    if (!isLoggable(level)) return;
+    if (level >= Log.ERROR) {
+      Log.println(level, tag, new Record(level, tag, format, args).message());
+      return;
+    }
+    if (!acquireRate(tag)) {
+      sDropped.incrementAndGet();
+      return;
+    }
+    enqueue(new Record(level, tag, format, args));
+  }
+
+  private static boolean acquireRate(String tag) {
+    int limit = sRateLimit;
+    if (limit <= 0) return true;
+    RateWindow window = sRates.get(tag);
+    if (window == null) {
+      RateWindow created = new RateWindow();
+      window = sRates.putIfAbsent(tag, created);
+      if (window == null) window = created;
+    }
+    long now = SystemClock.elapsedRealtime();
+    long start = window.mStart.get();
+    if (now - start >= RATE_WINDOW_MILLIS && window.mStart.compareAndSet(start, now)) {
+      window.mCount.set(0);
+    }
+    return window.mCount.incrementAndGet() <= limit;
+  }
+
+  private static void enqueue(Record record) {
+    long head;
+    do {
+      head = sHead.get();
+      if (head - sTail.get() >= BUFFER_SIZE) {
+        sDropped.incrementAndGet();
+        return;
+      }
+    } while (!sHead.compareAndSet(head, head + 1));
+    sBuffer.set((int) (head & BUFFER_MASK), record);
+
+    if (sWriter == null) startWriter();
+    if (sWriterParked) LockSupport.unpark(sWriter);
+  }
+
+  private static void startWriter() {
+    if (!sWriterStarted.compareAndSet(false, true)) return;
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drainForever();
+      }
+    }, "Logger");
+    writer.setDaemon(true);
+    writer.setPriority(Thread.MIN_PRIORITY);
+    sWriter = writer;
+    writer.start();
+  }
+
+  private static void drainForever() {
+    while (true) {
+      long tail = sTail.get();
+      int index = (int) (tail & BUFFER_MASK);
+      Record record = sBuffer.get(index);
+      if (record != null) {
+        sBuffer.set(index, null);
+        sTail.set(tail + 1);
+        Log.println(record.mLevel, record.mTag, record.message());
+        continue;
+      }
+
+      int dropped = sDropped.getAndSet(0);
+      if (dropped > 0) {
+        Log.w("Logger", dropped + " log message(s) dropped (rate limit or full buffer).");
+      }
+      if (tail == sHead.get()) {
+        // Empty. Re-check after announcing we're parked, so a concurrent enqueue can't be missed.
+        sWriterParked = true;
+        if (tail == sHead.get()) LockSupport.parkNanos(WRITER_IDLE_PARK_NANOS);
+        sWriterParked = false;
+      } else {
+        // A producer claimed the slot but hasn't filled it in yet.
+        Thread.yield();
+      }
+    }
   }
 }
@@ -0,0 +1,127 @@
+package com.example.android.trivialdrivesample.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Decides when IabHelper's asynchronous operations may run. Operations that don't
+ * conflict (inventory queries and consumptions, any number of each) run at the same
+ * time; an exclusive operation (a purchase flow) runs on its own. An operation that
+ * conflicts with what is running is queued, not rejected. Operations are admitted in
+ * submission order, so an exclusive operation can't be starved by a stream of reads.
+ * <p>
+ * Every operation must call {@link #finish} exactly once when it is done.
+ */
+class OperationScheduler {
+    // Read-only queries, such as an inventory refresh
+    static final int KIND_READ = 0;
+    // Consumption of purchases
+    static final int KIND_CONSUME = 1;
+    // Runs alone, such as a purchase flow
+    static final int KIND_EXCLUSIVE = 2;
+
+    /**
+     * An operation to schedule. The scheduler runs it on the executor it was submitted
+     * with once it is allowed to start.
+     */
+    abstract static class Operation implements Runnable {
+        final int mKind;
+        final String mName;
+        Executor mExecutor;
+
+        Operation(int kind, String name) {
+            mKind = kind;
+            mName = name;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private final ArrayDeque<Operation> mQueue = new ArrayDeque<Operation>();
+    private final List<Operation> mRunning = new ArrayList<Operation>();
+    private Runnable mWhenIdle;
+
+    /**
+     * Runs op on executor as soon as it doesn't conflict with the running operations
+     * and everything submitted before it has started.
+     */
+    void submit(Operation op, Executor executor) {
+        op.mExecutor = executor;
+        List<Operation> toStart;
+        synchronized (this) {
+            mQueue.addLast(op);
+            toStart = admit();
+        }
+        start(toStart);
+    }
+
+    /**
+     * Marks op as done, and starts whatever was waiting for it.
+     */
+    void finish(Operation op) {
+        List<Operation> toStart;
+        Runnable whenIdle = null;
+        synchronized (this) {
+            if (!mRunning.remove(op)) return;
+            toStart = admit();
+            if (isIdle() && mWhenIdle != null) {
+                whenIdle = mWhenIdle;
+                mWhenIdle = null;
+            }
+        }
+        start(toStart);
+        if (whenIdle != null) whenIdle.run();
+    }
+
+    synchronized boolean isIdle() {
+        return mRunning.isEmpty() && mQueue.isEmpty();
+    }
+
+    /**
+     * Arranges for r to run once nothing is running or queued. Returns false, without
+     * keeping r, if that is already the case.
+     */
+    synchronized boolean runWhenIdle(Runnable r) {
+        if (isIdle()) return false;
+        mWhenIdle = r;
+        return true;
+    }
+
+    /**
+     * Describes the running and queued operations, for messages and logs.
+     */
+    synchronized String describe() {
+        return "running: " + mRunning + ", queued: " + mQueue;
+    }
+
+    // Moves operations from the head of the queue to the running list while they fit.
+    private List<Operation> admit() {
+        List<Operation> admitted = new ArrayList<Operation>();
+        while (!mQueue.isEmpty() && canRun(mQueue.peekFirst())) {
+            Operation op = mQueue.pollFirst();
+            mRunning.add(op);
+            admitted.add(op);
+        }
+        return admitted;
+    }
+
+    private boolean canRun(Operation op) {
+        if (mRunning.isEmpty()) return true;
+        if (op.mKind == KIND_EXCLUSIVE) return false;
+        for (Operation running : mRunning) {
+            if (running.mKind == KIND_EXCLUSIVE) return false;
+        }
+        return true;
+    }
+
+    private static void start(List<Operation> ops) {
+        for (Operation op : ops) {
+            op.mExecutor.execute(op);
+        }
+    }
+}
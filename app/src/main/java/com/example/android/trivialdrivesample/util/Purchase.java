@@ -15,33 +15,49 @@
 
 package com.example.android.trivialdrivesample.util;
 
-import android.util.Log;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
  * Represents an in-app billing purchase.
+ * <p>
+ * Only the product ID and the token are read from the purchase JSON up front, in one pass
+ * (see {@link JsonScanner}); the other fields are parsed the first time one of them is
+ * asked for. Bulk inventory scans, which need just those two, thus don't pay for parsing
+ * every field.
  */
 public class Purchase {
   String mItemType;  // ITEM_TYPE_INAPP or ITEM_TYPE_SUBS
-  String mOrderId;
-  String mPackageName;
   String mSku;
-  long mPurchaseTime;
-  int mPurchaseState;
-  String mDeveloperPayload;
-  String mToken;
   String mOriginalJson;
   String mSignature;
-  boolean isSubscription;
-  boolean mIsAutoRenewing;
+  private String mToken;
+  // Everything below is parsed from mOriginalJson on first use, see ensureParsed()
+  private volatile boolean mParsed;
+  private String mOrderId;
+  private String mPackageName;
+  private long mPurchaseTime;
+  private int mPurchaseState;
+  private String mDeveloperPayload;
+  private boolean mIsSubscription;
+  private boolean mIsAutoRenewing;
   private String startTimeOfSession;
 
   public Purchase(String itemType, String jsonPurchaseInfo, String signature) throws JSONException {
     mItemType = itemType;
     mOriginalJson = jsonPurchaseInfo;
-    JSONObject o = new JSONObject(mOriginalJson);
+    mSignature = signature;
+    String[] fields = JsonScanner.findFields(jsonPurchaseInfo, "productId", "token", "purchaseToken");
+    if (fields == null) {
+      // Not something the scanner handles; let org.json decide (and throw if it's invalid).
+      parse(new JSONObject(mOriginalJson));
+      return;
+    }
+    mSku = fields[0] != null ? fields[0] : "";
+    mToken = fields[1] != null ? fields[1] : fields[2] != null ? fields[2] : "";
+  }
+
+  private void parse(JSONObject o) {
     mOrderId = o.optString("orderId");
     mPackageName = o.optString("packageName");
     mSku = o.optString("productId");
@@ -50,22 +66,35 @@ public class Purchase {
     mDeveloperPayload = o.optString("developerPayload");
     mToken = o.optString("token", o.optString("purchaseToken"));
     mIsAutoRenewing = o.optBoolean("autoRenewing");
-    isSubscription = o.optBoolean("isSubscription");
+    mIsSubscription = o.optBoolean("isSubscription");
     startTimeOfSession = o.optString("startTime");
-    mSignature = signature;
-
+    mParsed = true;
   }
 
+  private void ensureParsed() {
+    if (mParsed) return;
+    synchronized (this) {
+      if (mParsed) return;
+      try {
+        parse(new JSONObject(mOriginalJson));
+      } catch (JSONException e) {
+        // Can't happen: the constructor already checked the JSON is well formed.
+        throw new IllegalStateException("Purchase JSON became unparseable", e);
+      }
+    }
+  }
 
   public final String getItemType() {
     return mItemType;
   }
 
   public final String getOrderId() {
+    ensureParsed();
     return mOrderId;
   }
 
   public final String getPackageName() {
+    ensureParsed();
     return mPackageName;
   }
 
@@ -74,14 +103,17 @@ public class Purchase {
   }
 
   public final long getPurchaseTime() {
+    ensureParsed();
     return mPurchaseTime;
   }
 
   public final int getPurchaseState() {
+    ensureParsed();
     return mPurchaseState;
   }
 
   public final String getDeveloperPayload() {
+    ensureParsed();
     return mDeveloperPayload;
   }
 
@@ -98,14 +130,17 @@ public class Purchase {
   }
 
   public final boolean isAutoRenewing() {
+    ensureParsed();
     return mIsAutoRenewing;
   }
 
   final boolean isSubscription() {
-    return isSubscription;
+    ensureParsed();
+    return mIsSubscription;
   }
 
   public final String getStartTimeOfSession() {
+    ensureParsed();
     return startTimeOfSession;
   }
 
@@ -27,6 +27,7 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.List;
 
 /**
  * Security-related methods. For a secure implementation, all of this code
@@ -42,6 +43,8 @@ public class Security {
 
     private static final String KEY_FACTORY_ALGORITHM = "RSA";
     private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+    // Batches smaller than this are verified on the calling thread.
+    private static final int MIN_PARALLEL_BATCH = 8;
 
     /**
      * Verifies that the data was signed with the given signature, and returns
@@ -63,6 +66,20 @@ public class Security {
         return Security.verify(key, signedData, signature);
     }
 
+    /**
+     * Creates a {@link Verifier} for the given Base64-encoded public key. The key is
+     * decoded once, here, rather than on every verification.
+     *
+     * @param base64PublicKey the base64-encoded public key to use for verifying.
+     * @throws IllegalArgumentException if base64PublicKey is invalid
+     */
+    public static Verifier newVerifier(String base64PublicKey) {
+        if (TextUtils.isEmpty(base64PublicKey)) {
+            throw new IllegalArgumentException("Missing public key.");
+        }
+        return new Verifier(Security.generatePublicKey(base64PublicKey));
+    }
+
     /**
      * Generates a PublicKey instance from a string containing the
      * Base64-encoded public key.
@@ -101,7 +118,17 @@ public class Security {
             return false;
         }
         try {
-            Signature sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            return verify(Signature.getInstance(SIGNATURE_ALGORITHM), publicKey, signedData,
+                    signatureBytes);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "NoSuchAlgorithmException.");
+        }
+        return false;
+    }
+
+    private static boolean verify(Signature sig, PublicKey publicKey, String signedData,
+            byte[] signatureBytes) {
+        try {
             sig.initVerify(publicKey);
             sig.update(signedData.getBytes());
             if (!sig.verify(signatureBytes)) {
@@ -109,8 +136,6 @@ public class Security {
                 return false;
             }
             return true;
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, "NoSuchAlgorithmException.");
         } catch (InvalidKeyException e) {
             Log.e(TAG, "Invalid key specification.");
         } catch (SignatureException e) {
@@ -118,4 +143,74 @@ public class Security {
         }
         return false;
     }
+
+    /**
+     * Verifies purchases against a single, already decoded public key. Create one
+     * with {@link Security#newVerifier} and keep it for as long as the key is in use;
+     * each thread gets its own reusable {@link Signature} instance, so a Verifier
+     * may be shared between threads.
+     */
+    public static class Verifier {
+        private final PublicKey mPublicKey;
+        private final ThreadLocal<Signature> mSignature = new ThreadLocal<Signature>() {
+            @Override
+            protected Signature initialValue() {
+                try {
+                    return Signature.getInstance(SIGNATURE_ALGORITHM);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        Verifier(PublicKey publicKey) {
+            mPublicKey = publicKey;
+        }
+
+        /**
+         * Same as {@link Security#verifyPurchase}, but using this verifier's key.
+         * @param signedData the signed JSON string (signed, not encrypted)
+         * @param signature the signature for the data, signed with the private key
+         */
+        public boolean verifyPurchase(String signedData, String signature) {
+            if (TextUtils.isEmpty(signedData) || TextUtils.isEmpty(signature)) {
+                Log.e(TAG, "Purchase verification failed: missing data.");
+                return false;
+            }
+
+            byte[] signatureBytes;
+            try {
+                signatureBytes = Base64.decode(signature, Base64.DEFAULT);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Base64 decoding failed.");
+                return false;
+            }
+            return Security.verify(mSignature.get(), mPublicKey, signedData, signatureBytes);
+        }
+
+        /**
+         * Verifies a batch of purchases, such as one page returned by getPurchases().
+         * Large batches are spread over a pool sized to the number of cores.
+         *
+         * @param signedData the signed JSON strings
+         * @param signatures the signatures, one for each entry of signedData
+         * @return for each index, whether that purchase verified successfully
+         */
+        public boolean[] verifyPurchases(final List<String> signedData,
+                final List<String> signatures) {
+            final boolean[] verified = new boolean[signedData.size()];
+            int parallelism = verified.length < MIN_PARALLEL_BATCH
+                    ? 1 : BillingExecutors.cpuCount();
+            BillingExecutors.forEachIndex(BillingExecutors.computePool(), verified.length,
+                    parallelism, new BillingExecutors.IndexedTask() {
+                        @Override
+                        public boolean run(int index) {
+                            verified[index] = verifyPurchase(signedData.get(index),
+                                    signatures.get(index));
+                            return true;
+                        }
+                    });
+            return verified;
+        }
+    }
 }
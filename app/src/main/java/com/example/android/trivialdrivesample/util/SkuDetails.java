@@ -20,17 +20,22 @@ import org.json.JSONObject;
 
 /**
  * Represents an in-app product's listing details.
+ * <p>
+ * Like {@link Purchase}, only the product ID is read up front; the other fields are
+ * parsed from the JSON the first time one of them is asked for.
  */
 public class SkuDetails {
     private final String mItemType;
-    private final String mSku;
-    private final String mType;
-    private final String mPrice;
-    private final long mPriceAmountMicros;
-    private final String mPriceCurrencyCode;
-    private final String mTitle;
-    private final String mDescription;
     private final String mJson;
+    private String mSku;
+    // Everything below is parsed from mJson on first use, see ensureParsed()
+    private volatile boolean mParsed;
+    private String mType;
+    private String mPrice;
+    private long mPriceAmountMicros;
+    private String mPriceCurrencyCode;
+    private String mTitle;
+    private String mDescription;
 
     public SkuDetails(String jsonSkuDetails) throws JSONException {
         this(IabHelper.ITEM_TYPE_INAPP, jsonSkuDetails);
@@ -39,7 +44,14 @@ public class SkuDetails {
     public SkuDetails(String itemType, String jsonSkuDetails) throws JSONException {
         mItemType = itemType;
         mJson = jsonSkuDetails;
-        JSONObject o = new JSONObject(mJson);
+        mSku = JsonScanner.findField(jsonSkuDetails, "productId");
+        if (mSku == null) {
+            // Not something the scanner handles; let org.json decide (and throw if it's invalid).
+            parse(new JSONObject(mJson));
+        }
+    }
+
+    private void parse(JSONObject o) {
         mSku = o.optString("productId");
         mType = o.optString("type");
         mPrice = o.optString("price");
@@ -47,15 +59,31 @@ public class SkuDetails {
         mPriceCurrencyCode = o.optString("price_currency_code");
         mTitle = o.optString("title");
         mDescription = o.optString("description");
+        mParsed = true;
+    }
+
+    private void ensureParsed() {
+        if (mParsed) return;
+        synchronized (this) {
+            if (mParsed) return;
+            try {
+                parse(new JSONObject(mJson));
+            } catch (JSONException e) {
+                // Can't happen: the constructor already checked the JSON is well formed.
+                throw new IllegalStateException("SKU details JSON became unparseable", e);
+            }
+        }
     }
 
+    String getItemType() { return mItemType; }
+    String getOriginalJson() { return mJson; }
     public String getSku() { return mSku; }
-    public String getType() { return mType; }
-    public String getPrice() { return mPrice; }
-    public long getPriceAmountMicros() { return mPriceAmountMicros; }
-    public String getPriceCurrencyCode() { return mPriceCurrencyCode; }
-    public String getTitle() { return mTitle; }
-    public String getDescription() { return mDescription; }
+    public String getType() { ensureParsed(); return mType; }
+    public String getPrice() { ensureParsed(); return mPrice; }
+    public long getPriceAmountMicros() { ensureParsed(); return mPriceAmountMicros; }
+    public String getPriceCurrencyCode() { ensureParsed(); return mPriceCurrencyCode; }
+    public String getTitle() { ensureParsed(); return mTitle; }
+    public String getDescription() { ensureParsed(); return mDescription; }
 
     @Override
     public String toString() {
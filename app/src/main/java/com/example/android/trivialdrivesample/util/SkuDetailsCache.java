@@ -0,0 +1,120 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory cache of {@link SkuDetails}, keyed by item type and SKU, that sits in front of
+ * getSkuDetails(). Entries are fresh for a configurable time-to-live; after that they are
+ * either re-fetched or, if the helper is set up to serve stale details, returned as they are
+ * while a background refresh runs. Install it with {@link IabHelper#setSkuDetailsCache}.
+ * This class is thread-safe.
+ */
+public class SkuDetailsCache {
+    private final long mTtlMillis;
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    // Keys with a background refresh in flight
+    private final Set<String> mRefreshing = new HashSet<String>();
+
+    private static class Entry {
+        final SkuDetails mDetails;
+        final long mFetchedAt;
+
+        Entry(SkuDetails details, long fetchedAt) {
+            mDetails = details;
+            mFetchedAt = fetchedAt;
+        }
+    }
+
+    /**
+     * @param ttlMillis How long, in milliseconds, fetched details are considered fresh.
+     */
+    public SkuDetailsCache(long ttlMillis) {
+        if (ttlMillis < 0) throw new IllegalArgumentException("Negative TTL: " + ttlMillis);
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the cached details for a product, fresh or not, or null if there are none.
+     */
+    public synchronized SkuDetails get(String itemType, String sku) {
+        Entry e = mEntries.get(key(itemType, sku));
+        return e == null ? null : e.mDetails;
+    }
+
+    /**
+     * Drops the cached details for a product, so the next query fetches them again.
+     */
+    public synchronized void invalidate(String itemType, String sku) {
+        mEntries.remove(key(itemType, sku));
+    }
+
+    /**
+     * Drops all cached details.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Adds cached details for skus to inv.
+     *
+     * @param serveStale whether expired entries may be added to inv
+     * @param staleOut   receives the skus whose expired entries were added to inv
+     * @return the skus that have to be fetched now (missing, or expired and not served)
+     */
+    synchronized List<String> fill(String itemType, List<String> skus, Inventory inv,
+                                   boolean serveStale, List<String> staleOut) {
+        long now = SystemClock.elapsedRealtime();
+        List<String> toFetch = new ArrayList<String>();
+        for (String sku : skus) {
+            Entry e = mEntries.get(key(itemType, sku));
+            if (e == null) {
+                toFetch.add(sku);
+            } else if (now - e.mFetchedAt < mTtlMillis) {
+                inv.addSkuDetails(e.mDetails);
+            } else if (serveStale) {
+                inv.addSkuDetails(e.mDetails);
+                staleOut.add(sku);
+            } else {
+                toFetch.add(sku);
+            }
+        }
+        return toFetch;
+    }
+
+    synchronized void putAll(Collection<SkuDetails> details) {
+        long now = SystemClock.elapsedRealtime();
+        for (SkuDetails d : details) {
+            mEntries.put(key(d.getItemType(), d.getSku()), new Entry(d, now));
+        }
+    }
+
+    /**
+     * Marks skus as being refreshed, and returns those that weren't already.
+     */
+    synchronized List<String> startRefresh(String itemType, List<String> skus) {
+        List<String> started = new ArrayList<String>();
+        for (String sku : skus) {
+            if (mRefreshing.add(key(itemType, sku))) started.add(sku);
+        }
+        return started;
+    }
+
+    synchronized void finishRefresh(String itemType, List<String> skus) {
+        for (String sku : skus) {
+            mRefreshing.remove(key(itemType, sku));
+        }
+    }
+
+    private static String key(String itemType, String sku) {
+        return itemType + ':' + sku;
+    }
+}
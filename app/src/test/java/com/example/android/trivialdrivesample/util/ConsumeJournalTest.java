@@ -0,0 +1,235 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConsumeJournalTest {
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mTemp.getRoot(), "consume.journal");
+    }
+
+    private static Purchase purchase(String sku, String token) throws JSONException {
+        return new Purchase(IabHelper.ITEM_TYPE_INAPP,
+                "{\"productId\":\"" + sku + "\",\"purchaseToken\":\"" + token + "\"}", "sig-" + token);
+    }
+
+    // A new journal on the same file, as the next process start would see it.
+    private List<ConsumeJournal.Entry> reopen() {
+        return new ConsumeJournal(mFile).loadPending();
+    }
+
+    private int lineCount() throws IOException {
+        if (!mFile.exists()) return 0;
+        BufferedReader in = new BufferedReader(new FileReader(mFile));
+        try {
+            int lines = 0;
+            while (in.readLine() != null) lines++;
+            return lines;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void appendRaw(String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void emptyJournalHasNothingPending() {
+        assertTrue(reopen().isEmpty());
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void intentWithoutAckIsReplayed() throws Exception {
+        ConsumeJournal journal = new ConsumeJournal(mFile);
+        Purchase gas = purchase("gas", "t1");
+        journal.recordIntent(gas);
+
+        List<ConsumeJournal.Entry> pending = reopen();
+        assertEquals(1, pending.size());
+        ConsumeJournal.Entry entry = pending.get(0);
+        assertFalse(entry.isConsumed());
+        assertEquals(ConsumeJournal.STATE_INTENT, entry.mState);
+        assertEquals("gas", entry.mPurchase.getSku());
+        assertEquals("t1", entry.mPurchase.getToken());
+        assertEquals(IabHelper.ITEM_TYPE_INAPP, entry.mPurchase.getItemType());
+        assertEquals(gas.getOriginalJson(), entry.mPurchase.getOriginalJson());
+        assertEquals("sig-t1", entry.mPurchase.getSignature());
+    }
+
+    @Test
+    public void consumedWithoutAckIsReplayedAsConsumed() throws Exception {
+        ConsumeJournal journal = new ConsumeJournal(mFile);
+        journal.recordIntent(purchase("gas", "t1"));
+        journal.recordConsumed("t1");
+
+        List<ConsumeJournal.Entry> pending = reopen();
+        assertEquals(1, pending.size());
+        assertTrue(pending.get(0).isConsumed());
+    }
+
+    @Test
+    public void acknowledgedEntriesAreClosed() throws Exception {
+        ConsumeJournal journal = new ConsumeJournal(mFile);
+        journal.recordIntent(purchase("gas", "t1"));
+        journal.recordConsumed("t1");
+        journal.recordAcknowledged("t1");
+        journal.recordIntent(purchase("gas", "t2"));
+        journal.recordAcknowledged("t2");
+
+        assertTrue(reopen().isEmpty());
+        // Nothing open: loadPending() compacted the file away.
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void failedAttemptClosesAnUnconsumedEntry() throws Exception {
+        ConsumeJournal journal = new ConsumeJournal(mFile);
+        journal.recordIntent(purchase("gas", "t1"));
+        journal.recordFailed("t1");
+
+        assertNull(journal.stateOf("t1"));
+        assertTrue(reopen().isEmpty());
+    }
+
+    @Test
+    public void laterAttemptsDoNotReopenAConsumedEntry() throws Exception {
+        ConsumeJournal journal = new ConsumeJournal(mFile);
+        journal.recordIntent(purchase("gas", "t1"));
+        journal.recordConsumed("t1");
+        // A duplicate consume of the same purchase, which the service turns down.
+        journal.recordIntent(purchase("gas", "t1"));
+        journal.recordFailed("t1");
+
+        assertEquals(ConsumeJournal.STATE_CONSUMED, journal.stateOf("t1"));
+        List<ConsumeJournal.Entry> pending = reopen();
+        assertEquals(1, pending.size());
+        assertTrue(pending.get(0).isConsumed());
+    }
+
+    @Test
+    public void stateOfFollowsTheRecords() throws Exception {
+        ConsumeJournal journal = new ConsumeJournal(mFile);
+        assertNull(journal.stateOf("t1"));
+        journal.recordIntent(purchase("gas", "t1"));
+        assertEquals(ConsumeJournal.STATE_INTENT, journal.stateOf("t1"));
+        journal.recordConsumed("t1");
+        assertEquals(ConsumeJournal.STATE_CONSUMED, journal.stateOf("t1"));
+        journal.recordAcknowledged("t1");
+        assertNull(journal.stateOf("t1"));
+
+        // A fresh journal reads the state back from the file.
+        journal.recordIntent(purchase("gas", "t2"));
+        assertEquals(ConsumeJournal.STATE_INTENT, new ConsumeJournal(mFile).stateOf("t2"));
+    }
+
+    @Test
+    public void pendingEntriesKeepTheirOrder() throws Exception {
+        ConsumeJournal journal = new ConsumeJournal(mFile);
+        journal.recordIntent(purchase("gas", "t1"));
+        journal.recordIntent(purchase("gas", "t2"));
+        journal.recordIntent(purchase("premium", "t3"));
+        journal.recordConsumed("t2");
+        journal.recordAcknowledged("t1");
+
+        List<ConsumeJournal.Entry> pending = reopen();
+        assertEquals(2, pending.size());
+        assertEquals("t2", pending.get(0).mPurchase.getToken());
+        assertTrue(pending.get(0).isConsumed());
+        assertEquals("t3", pending.get(1).mPurchase.getToken());
+        assertFalse(pending.get(1).isConsumed());
+    }
+
+    @Test
+    public void loadPendingCompactsToOpenEntries() throws Exception {
+        ConsumeJournal journal = new ConsumeJournal(mFile);
+        journal.recordIntent(purchase("gas", "t1"));
+        journal.recordIntent(purchase("gas", "t2"));
+        journal.recordConsumed("t2");
+        journal.recordIntent(purchase("gas", "t3"));
+        journal.recordAcknowledged("t3");
+        assertEquals(5, lineCount());
+
+        assertEquals(2, reopen().size());
+        // The intent of t1, plus the intent and consumed state of t2.
+        assertEquals(3, lineCount());
+        // Compacting again changes nothing.
+        assertEquals(2, reopen().size());
+        assertEquals(3, lineCount());
+    }
+
+    @Test
+    public void manyAcknowledgementsCompactTheFile() throws Exception {
+        ConsumeJournal journal = new ConsumeJournal(mFile);
+        journal.recordIntent(purchase("premium", "open"));
+        for (int i = 0; i < ConsumeJournal.COMPACT_THRESHOLD; i++) {
+            journal.recordIntent(purchase("gas", "t" + i));
+            journal.recordConsumed("t" + i);
+            journal.recordAcknowledged("t" + i);
+        }
+        // Only the entry that is still open is left.
+        assertEquals(1, lineCount());
+        List<ConsumeJournal.Entry> pending = reopen();
+        assertEquals(1, pending.size());
+        assertEquals("open", pending.get(0).mPurchase.getToken());
+    }
+
+    @Test
+    public void tornLineIsSkippedAndLaterEntriesReplayed() throws Exception {
+        new ConsumeJournal(mFile).recordIntent(purchase("gas", "t1"));
+        // A crash in the middle of appending the consumed state of t1.
+        appendRaw("{\"s\":\"C\",\"t\":\"t");
+
+        // The next run appends after the torn line.
+        ConsumeJournal journal = new ConsumeJournal(mFile);
+        journal.recordIntent(purchase("gas", "t2"));
+        journal.recordConsumed("t2");
+
+        List<ConsumeJournal.Entry> pending = reopen();
+        assertEquals(2, pending.size());
+        assertEquals("t1", pending.get(0).mPurchase.getToken());
+        assertFalse(pending.get(0).isConsumed());
+        assertEquals("t2", pending.get(1).mPurchase.getToken());
+        assertTrue(pending.get(1).isConsumed());
+    }
+
+    @Test
+    public void unreadableLinesInTheMiddleAreSkipped() throws Exception {
+        ConsumeJournal journal = new ConsumeJournal(mFile);
+        journal.recordIntent(purchase("gas", "t1"));
+        appendRaw("not json\n\n{\"s\":\"I\",\"t\":\"bad\",\"type\":\"inapp\",\"json\":\"{broken\"}\n");
+        journal.recordIntent(purchase("gas", "t2"));
+        journal.recordAcknowledged("t1");
+
+        List<ConsumeJournal.Entry> pending = reopen();
+        assertEquals(1, pending.size());
+        assertEquals("t2", pending.get(0).mPurchase.getToken());
+    }
+}
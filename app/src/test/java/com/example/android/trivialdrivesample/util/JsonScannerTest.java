@@ -0,0 +1,104 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class JsonScannerTest {
+    private static final String KEY = "productId";
+
+    // The scanner must agree with org.json on everything it accepts.
+    private static void assertScans(String expected, String json) throws JSONException {
+        assertEquals(expected, JsonScanner.findField(json, KEY));
+        assertEquals(expected, new JSONObject(json).optString(KEY));
+    }
+
+    private static void assertRejected(String json) {
+        assertNull(json, JsonScanner.findField(json, KEY));
+    }
+
+    @Test
+    public void findsTopLevelField() throws JSONException {
+        assertScans("gas", "{\"productId\":\"gas\"}");
+        assertScans("gas", " {\n\t\"orderId\" : \"1\" ,\r\n \"productId\" : \"gas\" } ");
+        assertScans("", "{}");
+        assertScans("", "{\"orderId\":\"1\"}");
+    }
+
+    @Test
+    public void lastDuplicateKeyWins() throws JSONException {
+        assertEquals("second", JsonScanner.findField("{\"productId\":\"first\",\"productId\":\"second\"}", KEY));
+    }
+
+    @Test
+    public void decodesEscapes() throws JSONException {
+        assertScans("a\"b\\c/d\be\ff\ng\rh\ti", "{\"productId\":\"a\\\"b\\\\c\\/d\\be\\ff\\ng\\rh\\ti\"}");
+        assertScans("\u00e9A\u20ac", "{\"productId\":\"\\u00e9\\u0041\\u20AC\"}");
+        assertScans("x\u0000y", "{\"productId\":\"x\\u0000y\"}");
+        // Escapes elsewhere must not confuse the scan.
+        assertScans("gas", "{\"payload\":\"\\\"productId\\\":\\\"premium\\\"\",\"productId\":\"gas\"}");
+        // Keys are compared decoded, like org.json does.
+        assertScans("gas", "{\"pro\\u0064uctId\":\"gas\"}");
+        assertEquals("x", JsonScanner.findField("{\"productId\":\"gas\",\"pro\\u0064uctId\":\"x\"}", KEY));
+        assertScans("", "{\"product\\\"Id\":\"gas\"}");
+    }
+
+    @Test
+    public void skipsNestedObjectsAndArrays() throws JSONException {
+        assertScans("outer", "{\"a\":{\"productId\":\"inner\",\"b\":[1,{\"c\":[]},\"]\"]},\"productId\":\"outer\"}");
+        assertScans("", "{\"a\":{\"productId\":\"inner\"}}");
+        assertScans("gas", "{\"a\":[],\"b\":{},\"c\":[[[]]],\"productId\":\"gas\",\"d\":[{\"e\":null}]}");
+    }
+
+    @Test
+    public void scansNumbersAndLiterals() throws JSONException {
+        assertScans("gas", "{\"a\":0,\"b\":-12,\"c\":3.25,\"d\":-1.5e+10,\"e\":2E-3,\"f\":7e9,"
+                + "\"g\":true,\"h\":false,\"i\":null,\"productId\":\"gas\"}");
+        assertScans("1234", "{\"purchaseTime\":1234}".replace("purchaseTime", KEY));
+    }
+
+    @Test
+    public void findsSeveralFieldsInOnePass() {
+        String json = "{\"purchaseToken\":\"t\\u0031\",\"nested\":{\"token\":\"no\"},"
+                + "\"productId\":\"gas\",\"n\":5,\"empty\":null}";
+        String[] values = JsonScanner.findFields(json, "productId", "token", "purchaseToken", "n", "empty");
+        assertEquals("gas", values[0]);
+        assertNull(values[1]);
+        assertEquals("t1", values[2]);
+        assertEquals("5", values[3]);
+        assertNull(values[4]);
+        assertNull(JsonScanner.findFields("{\"productId\":", "productId", "token"));
+    }
+
+    @Test
+    public void rejectsMalformedJson() {
+        assertNull(JsonScanner.findField(null, KEY));
+        assertRejected("");
+        assertRejected("   ");
+        assertRejected("[]");
+        assertRejected("\"productId\"");
+        assertRejected("{");
+        assertRejected("{\"productId\":\"gas\"");
+        assertRejected("{\"productId\":\"gas}");
+        assertRejected("{\"productId\" \"gas\"}");
+        assertRejected("{\"productId\":\"gas\",}");
+        assertRejected("{\"productId\":}");
+        assertRejected("{productId:\"gas\"}");
+        assertRejected("{'productId':'gas'}");
+        assertRejected("{\"productId\":\"gas\"} trailing");
+        assertRejected("{\"productId\":\"gas\"}{}");
+        assertRejected("{\"productId\":\"bad \\x escape\"}");
+        assertRejected("{\"productId\":\"short \\u12\"}");
+        assertRejected("{\"productId\":\"not hex \\u12g4\"}");
+        assertRejected("{\"a\":[1,2,],\"productId\":\"gas\"}");
+        assertRejected("{\"a\":-,\"productId\":\"gas\"}");
+        assertRejected("{\"a\":1.,\"productId\":\"gas\"}");
+        assertRejected("{\"a\":1e,\"productId\":\"gas\"}");
+        assertRejected("{\"a\":+1,\"productId\":\"gas\"}");
+        assertRejected("{\"a\":tru,\"productId\":\"gas\"}");
+        assertRejected("{\"a\":NULL,\"productId\":\"gas\"}");
+    }
+}
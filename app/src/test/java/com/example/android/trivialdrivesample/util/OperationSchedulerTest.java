@@ -0,0 +1,150 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OperationSchedulerTest {
+    private final OperationScheduler mScheduler = new OperationScheduler();
+
+    // Records what the scheduler starts instead of running it, so the tests decide when
+    // each operation finishes.
+    private final List<Runnable> mStarted = new ArrayList<Runnable>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mStarted.add(command);
+        }
+    };
+
+    private OperationScheduler.Operation submit(int kind, String name) {
+        OperationScheduler.Operation op = new OperationScheduler.Operation(kind, name) {
+            @Override
+            public void run() {
+            }
+        };
+        mScheduler.submit(op, mExecutor);
+        return op;
+    }
+
+    private void assertStarted(OperationScheduler.Operation... ops) {
+        assertEquals(Arrays.<Runnable>asList(ops), mStarted);
+    }
+
+    @Test
+    public void readsAndConsumesRunTogether() {
+        OperationScheduler.Operation read1 = submit(OperationScheduler.KIND_READ, "read 1");
+        OperationScheduler.Operation consume = submit(OperationScheduler.KIND_CONSUME, "consume");
+        OperationScheduler.Operation read2 = submit(OperationScheduler.KIND_READ, "read 2");
+        assertStarted(read1, consume, read2);
+    }
+
+    @Test
+    public void exclusiveWaitsForRunningOperations() {
+        OperationScheduler.Operation read = submit(OperationScheduler.KIND_READ, "read");
+        OperationScheduler.Operation consume = submit(OperationScheduler.KIND_CONSUME, "consume");
+        OperationScheduler.Operation purchase = submit(OperationScheduler.KIND_EXCLUSIVE, "purchase");
+        assertStarted(read, consume);
+
+        mScheduler.finish(read);
+        assertStarted(read, consume);
+        mScheduler.finish(consume);
+        assertStarted(read, consume, purchase);
+    }
+
+    @Test
+    public void exclusiveRunsAlone() {
+        OperationScheduler.Operation purchase = submit(OperationScheduler.KIND_EXCLUSIVE, "purchase");
+        OperationScheduler.Operation read = submit(OperationScheduler.KIND_READ, "read");
+        OperationScheduler.Operation consume = submit(OperationScheduler.KIND_CONSUME, "consume");
+        assertStarted(purchase);
+
+        mScheduler.finish(purchase);
+        assertStarted(purchase, read, consume);
+    }
+
+    @Test
+    public void readsQueuedBehindExclusiveDoNotOvertakeIt() {
+        OperationScheduler.Operation read1 = submit(OperationScheduler.KIND_READ, "read 1");
+        OperationScheduler.Operation purchase = submit(OperationScheduler.KIND_EXCLUSIVE, "purchase");
+        // Would fit next to read 1, but the purchase was first.
+        OperationScheduler.Operation read2 = submit(OperationScheduler.KIND_READ, "read 2");
+        assertStarted(read1);
+
+        mScheduler.finish(read1);
+        assertStarted(read1, purchase);
+        mScheduler.finish(purchase);
+        assertStarted(read1, purchase, read2);
+    }
+
+    @Test
+    public void streamOfReadsDoesNotStarveExclusive() {
+        OperationScheduler.Operation running = submit(OperationScheduler.KIND_READ, "read 0");
+        OperationScheduler.Operation purchase = submit(OperationScheduler.KIND_EXCLUSIVE, "purchase");
+        for (int i = 1; i <= 10; i++) {
+            // Keep a read running and another one arriving at all times.
+            OperationScheduler.Operation next = submit(OperationScheduler.KIND_READ, "read " + i);
+            mScheduler.finish(running);
+            running = next;
+            if (mStarted.contains(purchase)) break;
+        }
+        assertEquals(Arrays.<Runnable>asList(mStarted.get(0), purchase), mStarted);
+    }
+
+    @Test
+    public void exclusivesRunOneAtATimeInSubmissionOrder() {
+        OperationScheduler.Operation first = submit(OperationScheduler.KIND_EXCLUSIVE, "first");
+        OperationScheduler.Operation second = submit(OperationScheduler.KIND_EXCLUSIVE, "second");
+        OperationScheduler.Operation third = submit(OperationScheduler.KIND_EXCLUSIVE, "third");
+        assertStarted(first);
+        mScheduler.finish(first);
+        assertStarted(first, second);
+        mScheduler.finish(second);
+        assertStarted(first, second, third);
+    }
+
+    @Test
+    public void finishingTwiceOrUnknownIsIgnored() {
+        OperationScheduler.Operation read = submit(OperationScheduler.KIND_READ, "read");
+        OperationScheduler.Operation purchase = submit(OperationScheduler.KIND_EXCLUSIVE, "purchase");
+        OperationScheduler.Operation other = submit(OperationScheduler.KIND_READ, "other");
+        mScheduler.finish(purchase); // queued, not running
+        assertStarted(read);
+
+        mScheduler.finish(read);
+        mScheduler.finish(read);
+        assertStarted(read, purchase);
+        mScheduler.finish(purchase);
+        assertStarted(read, purchase, other);
+    }
+
+    @Test
+    public void runWhenIdleRunsAfterLastOperation() {
+        final int[] runs = new int[1];
+        Runnable whenIdle = new Runnable() {
+            @Override
+            public void run() {
+                runs[0]++;
+            }
+        };
+        assertTrue(mScheduler.isIdle());
+        assertFalse(mScheduler.runWhenIdle(whenIdle));
+
+        OperationScheduler.Operation read = submit(OperationScheduler.KIND_READ, "read");
+        OperationScheduler.Operation purchase = submit(OperationScheduler.KIND_EXCLUSIVE, "purchase");
+        assertTrue(mScheduler.runWhenIdle(whenIdle));
+        mScheduler.finish(read);
+        assertEquals(0, runs[0]);
+        assertFalse(mScheduler.isIdle());
+        mScheduler.finish(purchase);
+        assertEquals(1, runs[0]);
+        assertTrue(mScheduler.isIdle());
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PurchaseTest {
+    private static final String JSON = "{"
+            + "\"orderId\":\"12999763169054705758.1371079406387615\","
+            + "\"packageName\":\"com.example.android.trivialdrivesample\","
+            + "\"productId\":\"gas\","
+            + "\"purchaseTime\":1345678900000,"
+            + "\"purchaseState\":0,"
+            + "\"developerPayload\":\"{\\\"user\\\":\\\"caf\\u00e9\\\",\\\"n\\\":[1,2]}\\n\","
+            + "\"purchaseToken\":\"opaque-token-up-to-1000-characters\","
+            + "\"autoRenewing\":true,"
+            + "\"isSubscription\":false,"
+            + "\"startTime\":\"2019-01-01\","
+            + "\"extra\":{\"productId\":\"not this one\",\"list\":[{},[]]}"
+            + "}";
+
+    // The getters of a lazily parsed purchase must match an eager org.json parse.
+    private static void assertMatchesEagerParse(String json) throws JSONException {
+        Purchase p = new Purchase(IabHelper.ITEM_TYPE_INAPP, json, "signature");
+        JSONObject o = new JSONObject(json);
+        assertEquals(o.optString("productId"), p.getSku());
+        assertEquals(o.optString("orderId"), p.getOrderId());
+        assertEquals(o.optString("packageName"), p.getPackageName());
+        assertEquals(o.optLong("purchaseTime"), p.getPurchaseTime());
+        assertEquals(o.optInt("purchaseState"), p.getPurchaseState());
+        assertEquals(o.optString("developerPayload"), p.getDeveloperPayload());
+        assertEquals(o.optString("token", o.optString("purchaseToken")), p.getToken());
+        assertEquals(o.optBoolean("autoRenewing"), p.isAutoRenewing());
+        assertEquals(o.optBoolean("isSubscription"), p.isSubscription());
+        assertEquals(o.optString("startTime"), p.getStartTimeOfSession());
+        assertEquals(IabHelper.ITEM_TYPE_INAPP, p.getItemType());
+        assertEquals(json, p.getOriginalJson());
+        assertEquals("signature", p.getSignature());
+    }
+
+    @Test
+    public void gettersMatchEagerParse() throws JSONException {
+        assertMatchesEagerParse(JSON);
+        assertMatchesEagerParse("{\"productId\":\"gas\",\"token\":\"t1\",\"purchaseToken\":\"t2\"}");
+        assertMatchesEagerParse("{}");
+    }
+
+    @Test
+    public void skuIsKnownBeforeTheRestIsParsed() throws JSONException {
+        Purchase p = new Purchase(IabHelper.ITEM_TYPE_INAPP, JSON, "signature");
+        assertEquals("gas", p.getSku());
+        assertEquals("opaque-token-up-to-1000-characters", p.getToken());
+    }
+
+    @Test
+    public void fallsBackToOrgJsonForWhatTheScannerRejects() throws JSONException {
+        // Lenient syntax org.json accepts but the scanner doesn't.
+        String lenient = "{'productId':'gas',purchaseToken:'t',purchaseTime:5}";
+        Purchase p = new Purchase(IabHelper.ITEM_TYPE_INAPP, lenient, "signature");
+        assertEquals("gas", p.getSku());
+        assertEquals("t", p.getToken());
+        assertEquals(5, p.getPurchaseTime());
+        assertMatchesEagerParse(lenient);
+    }
+
+    @Test
+    public void invalidJsonStillThrows() {
+        try {
+            new Purchase(IabHelper.ITEM_TYPE_INAPP, "{\"productId\":\"gas\"", "signature");
+            fail("Expected a JSONException");
+        } catch (JSONException expected) {
+        }
+    }
+}
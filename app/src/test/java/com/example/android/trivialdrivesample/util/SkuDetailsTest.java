@@ -0,0 +1,70 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SkuDetailsTest {
+    private static final String JSON = "{"
+            + "\"productId\":\"premium\","
+            + "\"type\":\"inapp\","
+            + "\"price\":\"\\u20ac1,99\","
+            + "\"price_amount_micros\":1990000,"
+            + "\"price_currency_code\":\"EUR\","
+            + "\"title\":\"Premium \\\"upgrade\\\" (Trivial Drive)\","
+            + "\"description\":\"Line one\\nLine two\\t\\/ tab\""
+            + "}";
+
+    // The getters of lazily parsed details must match an eager org.json parse.
+    private static void assertMatchesEagerParse(String json) throws JSONException {
+        SkuDetails d = new SkuDetails(IabHelper.ITEM_TYPE_SUBS, json);
+        JSONObject o = new JSONObject(json);
+        assertEquals(o.optString("productId"), d.getSku());
+        assertEquals(o.optString("type"), d.getType());
+        assertEquals(o.optString("price"), d.getPrice());
+        assertEquals(o.optLong("price_amount_micros"), d.getPriceAmountMicros());
+        assertEquals(o.optString("price_currency_code"), d.getPriceCurrencyCode());
+        assertEquals(o.optString("title"), d.getTitle());
+        assertEquals(o.optString("description"), d.getDescription());
+        assertEquals(IabHelper.ITEM_TYPE_SUBS, d.getItemType());
+        assertEquals(json, d.getOriginalJson());
+    }
+
+    @Test
+    public void gettersMatchEagerParse() throws JSONException {
+        assertMatchesEagerParse(JSON);
+        assertMatchesEagerParse("{\"productId\":\"gas\"}");
+        assertMatchesEagerParse("{}");
+    }
+
+    @Test
+    public void decodesEscapedStrings() throws JSONException {
+        SkuDetails d = new SkuDetails(JSON);
+        assertEquals("premium", d.getSku());
+        assertEquals("\u20ac1,99", d.getPrice());
+        assertEquals("Premium \"upgrade\" (Trivial Drive)", d.getTitle());
+        assertEquals("Line one\nLine two\t/ tab", d.getDescription());
+        assertEquals(IabHelper.ITEM_TYPE_INAPP, d.getItemType());
+    }
+
+    @Test
+    public void fallsBackToOrgJsonForWhatTheScannerRejects() throws JSONException {
+        String lenient = "{productId:'gas',price:'1.00',price_amount_micros:1000000}";
+        SkuDetails d = new SkuDetails(lenient);
+        assertEquals("gas", d.getSku());
+        assertEquals(1000000, d.getPriceAmountMicros());
+        assertMatchesEagerParse(lenient);
+    }
+
+    @Test
+    public void invalidJsonStillThrows() {
+        try {
+            new SkuDetails("not json");
+            fail("Expected a JSONException");
+        } catch (JSONException expected) {
+        }
+    }
+}
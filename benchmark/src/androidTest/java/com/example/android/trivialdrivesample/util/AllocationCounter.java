@@ -0,0 +1,41 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+/**
+ * Counts the objects and bytes the calling thread allocates while running a block a fixed
+ * number of times, and reports them per iteration next to the benchmark's timings (in
+ * logcat and the instrumentation output). Run separately from the timed loop, since
+ * allocation counting slows the runtime down.
+ */
+final class AllocationCounter {
+    private static final String TAG = "BillingBenchmark";
+    private static final int ITERATIONS = 100;
+
+    private AllocationCounter() {
+    }
+
+    static void report(String name, Runnable block) {
+        // Warm up first, so class loading and lazy statics aren't counted.
+        block.run();
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < ITERATIONS; i++) block.run();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        long objects = Debug.getThreadAllocCount() / ITERATIONS;
+        long bytes = Debug.getThreadAllocSize() / ITERATIONS;
+
+        Log.i(TAG, name + ": " + objects + " allocations, " + bytes + " bytes per op");
+        Bundle status = new Bundle();
+        status.putString("allocations", name + ": " + objects + " objects, " + bytes + " bytes per op");
+        InstrumentationRegistry.getInstrumentation().sendStatus(2, status);
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.android.trivialdrivesample.util;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * Gives each benchmark test a fresh {@link BenchmarkState}, and reports its timings once
+ * the test passes.
+ */
+public class BenchmarkRule implements TestRule {
+    private BenchmarkState mState;
+
+    BenchmarkState getState() {
+        if (mState == null) throw new IllegalStateException("getState() must be called from a test");
+        return mState;
+    }
+
+    @Override
+    public Statement apply(final Statement base, final Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                mState = new BenchmarkState();
+                try {
+                    base.evaluate();
+                    mState.report(description.getTestClass().getSimpleName() + "."
+                            + description.getMethodName());
+                } finally {
+                    mState = null;
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the loop of one benchmark test:
+ * <pre>
+ * while (state.keepRunning()) {
+ *     // code being measured
+ * }
+ * </pre>
+ * The loop first runs for a warmup period, so the JIT and caches settle, then for a fixed
+ * number of repeats, each long enough to time reliably with {@link System#nanoTime}. Work
+ * between {@link #pauseTiming} and {@link #resumeTiming} isn't counted.
+ * {@link BenchmarkRule} reports the median and minimum time per iteration.
+ */
+final class BenchmarkState {
+    private static final String TAG = "BillingBenchmark";
+    private static final long WARMUP_NS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final int MIN_WARMUP_ITERATIONS = 10;
+    private static final long TARGET_REPEAT_NS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final int REPEATS = 50;
+
+    private static final int NOT_STARTED = 0;
+    private static final int WARMUP = 1;
+    private static final int MEASURE = 2;
+    private static final int DONE = 3;
+
+    private int mPhase = NOT_STARTED;
+    private long mStartNs;
+    private long mPausedAtNs;
+    private long mPausedNs;
+    private int mIteration;
+    // Iterations per repeat, decided at the end of the warmup
+    private int mIterations;
+    private int mRepeat;
+    private final long[] mNsPerIteration = new long[REPEATS];
+
+    /** Returns true while the measured code should run once more. */
+    boolean keepRunning() {
+        long now = System.nanoTime();
+        switch (mPhase) {
+            case NOT_STARTED:
+                mPhase = WARMUP;
+                start(now);
+                return true;
+            case WARMUP:
+                long elapsed = now - mStartNs - mPausedNs;
+                if (++mIteration < MIN_WARMUP_ITERATIONS || elapsed < WARMUP_NS) return true;
+                mIterations = (int) Math.max(1, TARGET_REPEAT_NS * mIteration / Math.max(1, elapsed));
+                mPhase = MEASURE;
+                start(System.nanoTime());
+                return true;
+            case MEASURE:
+                if (++mIteration < mIterations) return true;
+                mNsPerIteration[mRepeat++] = (now - mStartNs - mPausedNs) / mIterations;
+                if (mRepeat == REPEATS) {
+                    mPhase = DONE;
+                    return false;
+                }
+                start(System.nanoTime());
+                return true;
+            default:
+                throw new IllegalStateException("keepRunning() called after it returned false");
+        }
+    }
+
+    /** Stops counting time, for work inside the loop that isn't part of the measurement. */
+    void pauseTiming() {
+        if (mPausedAtNs != 0) throw new IllegalStateException("Already paused");
+        mPausedAtNs = System.nanoTime();
+    }
+
+    void resumeTiming() {
+        if (mPausedAtNs == 0) throw new IllegalStateException("Not paused");
+        mPausedNs += System.nanoTime() - mPausedAtNs;
+        mPausedAtNs = 0;
+    }
+
+    private void start(long now) {
+        mStartNs = now;
+        mPausedNs = 0;
+        mIteration = 0;
+    }
+
+    // Logs the result, and adds it to the instrumentation output.
+    void report(String name) {
+        if (mPhase == NOT_STARTED) return;
+        if (mPhase != DONE) throw new IllegalStateException(name + " stopped before keepRunning() returned false");
+        long[] sorted = mNsPerIteration.clone();
+        Arrays.sort(sorted);
+        String result = name + ": median " + sorted[REPEATS / 2] + " ns, min " + sorted[0]
+                + " ns (" + REPEATS + " x " + mIterations + " iterations)";
+        Log.i(TAG, result);
+        Bundle status = new Bundle();
+        status.putString("benchmark", result);
+        InstrumentationRegistry.getInstrumentation().sendStatus(2, status);
+    }
+}
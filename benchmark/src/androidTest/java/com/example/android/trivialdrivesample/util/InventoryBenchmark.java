@@ -0,0 +1,89 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONException;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inventory lookups and the helpers the query path uses on large inventories.
+ */
+@RunWith(AndroidJUnit4.class)
+public class InventoryBenchmark {
+    private static final int PURCHASES = 1000;
+
+    private static Inventory sInventory;
+    private static List<String> sSkus;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @BeforeClass
+    public static void createInventory() throws JSONException {
+        sInventory = new Inventory();
+        sSkus = new ArrayList<String>(PURCHASES);
+        for (int i = 0; i < PURCHASES; i++) {
+            String sku = "sku_" + i;
+            String type = i % 4 == 0 ? IabHelper.ITEM_TYPE_SUBS : IabHelper.ITEM_TYPE_INAPP;
+            sInventory.addPurchase(new Purchase(type,
+                    "{\"productId\":\"" + sku + "\",\"purchaseToken\":\"token_" + i + "\"}", "sig"));
+            sSkus.add(sku);
+        }
+    }
+
+    @Test
+    public void getPurchase() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            sInventory.getPurchase(sSkus.get(i));
+            i = (i + 1) % PURCHASES;
+        }
+    }
+
+    @Test
+    public void getAllOwnedSkus_byType() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            sInventory.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP);
+        }
+    }
+
+    @Test
+    public void splitIntoPacks() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            IabHelper.splitIntoPacks(sSkus, 20);
+        }
+    }
+
+    @Test
+    public void iabResult() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new IabResult(IabHelper.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED, "");
+        }
+    }
+
+    @Test
+    public void allocations() {
+        AllocationCounter.report("Inventory.getAllOwnedSkus(itemType)", new Runnable() {
+            @Override
+            public void run() {
+                sInventory.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP);
+            }
+        });
+        AllocationCounter.report("IabHelper.splitIntoPacks", new Runnable() {
+            @Override
+            public void run() {
+                IabHelper.splitIntoPacks(sSkus, 20);
+            }
+        });
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Building {@link Purchase} and {@link SkuDetails} from the service's JSON. Only the
+ * product ID (and a purchase's token) are scanned up front; the eager variants read every
+ * field, which is what building a JSONObject used to cost.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParsingBenchmark {
+    private static final String PURCHASE_JSON = "{\"orderId\":\"GPA.1234-5678-9012-34567\","
+            + "\"packageName\":\"com.example.android.trivialdrivesample\",\"productId\":\"gas\","
+            + "\"purchaseTime\":1500000000000,\"purchaseState\":0,\"developerPayload\":\"\","
+            + "\"purchaseToken\":\"opaque-token-up-to-150-characters-long-abcdefghijklmnopqrstuvwxyz\"}";
+    private static final String SKU_DETAILS_JSON = "{\"productId\":\"gas\",\"type\":\"inapp\","
+            + "\"price\":\"10,000 IRR\",\"price_amount_micros\":10000000000,"
+            + "\"price_currency_code\":\"IRR\",\"title\":\"Gas\",\"description\":\"Fill up the tank\"}";
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void purchase_skuAndToken() throws JSONException {
+        // What an inventory query reads from every purchase.
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Purchase purchase = new Purchase(IabHelper.ITEM_TYPE_INAPP, PURCHASE_JSON, "sig");
+            purchase.getSku();
+            purchase.getToken();
+        }
+    }
+
+    @Test
+    public void purchase_allFields() throws JSONException {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new Purchase(IabHelper.ITEM_TYPE_INAPP, PURCHASE_JSON, "sig").getDeveloperPayload();
+        }
+    }
+
+    @Test
+    public void skuDetails_skuOnly() throws JSONException {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new SkuDetails(IabHelper.ITEM_TYPE_INAPP, SKU_DETAILS_JSON).getSku();
+        }
+    }
+
+    @Test
+    public void skuDetails_allFields() throws JSONException {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new SkuDetails(IabHelper.ITEM_TYPE_INAPP, SKU_DETAILS_JSON).getPrice();
+        }
+    }
+
+    // Baseline: what the constructors did before parsing became lazy.
+    @Test
+    public void jsonObject_baseline() throws JSONException {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new JSONObject(PURCHASE_JSON).optString("productId");
+        }
+    }
+
+    @Test
+    public void purchase_allocations() {
+        AllocationCounter.report("new Purchase(...).getSku()", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new Purchase(IabHelper.ITEM_TYPE_INAPP, PURCHASE_JSON, "sig").getSku();
+                } catch (JSONException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        AllocationCounter.report("new JSONObject(...)", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new JSONObject(PURCHASE_JSON).optString("productId");
+                } catch (JSONException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+    }
+}
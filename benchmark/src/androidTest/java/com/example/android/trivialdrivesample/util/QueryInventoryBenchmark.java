@@ -0,0 +1,54 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * End to end: a full inventory query against {@link FakeInAppBillingService}, covering
+ * paging, signature verification and building the Inventory. The fake answers instantly,
+ * so this measures the helper, not the binder.
+ */
+@RunWith(AndroidJUnit4.class)
+public class QueryInventoryBenchmark {
+    private static final int PURCHASES = 500;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private IabHelper mHelper;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        FakeInAppBillingService fake = new FakeInAppBillingService(context.getPackageName());
+        fake.addPurchases(IabHelper.ITEM_TYPE_INAPP, "item_", PURCHASES);
+        fake.addPurchases(IabHelper.ITEM_TYPE_SUBS, "sub_", PURCHASES / 10);
+        mHelper = new IabHelper(context, fake.getPublicKeyBase64());
+        mHelper.setUpForTesting(fake, true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHelper.dispose();
+    }
+
+    @Test
+    public void queryInventory() throws Exception {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Inventory inventory = mHelper.queryInventory();
+            state.pauseTiming();
+            assertEquals(PURCHASES, inventory.getAllOwnedSkus(IabHelper.ITEM_TYPE_INAPP).size());
+            state.resumeTiming();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.android.trivialdrivesample.util;
+
+import android.os.Bundle;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Signature verification: once per purchase with a fresh key (the old path), with a
+ * reusable {@link Security.Verifier}, and a whole getPurchases() page at once.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SecurityBenchmark {
+    private static final int PAGE_SIZE = 100;
+
+    private static String sPublicKey;
+    private static List<String> sData;
+    private static List<String> sSignatures;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @BeforeClass
+    public static void createPurchases() throws Exception {
+        FakeInAppBillingService fake = new FakeInAppBillingService("com.example.benchmark");
+        fake.setPageSize(PAGE_SIZE);
+        fake.addPurchases(IabHelper.ITEM_TYPE_INAPP, "sku_", PAGE_SIZE);
+        Bundle page = fake.getPurchases(3, "com.example.benchmark", IabHelper.ITEM_TYPE_INAPP, null);
+        sPublicKey = fake.getPublicKeyBase64();
+        sData = page.getStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST);
+        sSignatures = page.getStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST);
+    }
+
+    @Test
+    public void verifyPurchase_static() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            assertTrue(Security.verifyPurchase(sPublicKey, sData.get(i), sSignatures.get(i)));
+            i = (i + 1) % PAGE_SIZE;
+        }
+    }
+
+    @Test
+    public void verifyPurchase_verifier() {
+        Security.Verifier verifier = Security.newVerifier(sPublicKey);
+        BenchmarkState state = mBenchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            assertTrue(verifier.verifyPurchase(sData.get(i), sSignatures.get(i)));
+            i = (i + 1) % PAGE_SIZE;
+        }
+    }
+
+    @Test
+    public void verifyPurchases_page() {
+        Security.Verifier verifier = Security.newVerifier(sPublicKey);
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            verifier.verifyPurchases(sData, sSignatures);
+        }
+    }
+
+    @Test
+    public void verifyPurchase_allocations() {
+        final Security.Verifier verifier = Security.newVerifier(sPublicKey);
+        AllocationCounter.report("Security.verifyPurchase (static)", new Runnable() {
+            @Override
+            public void run() {
+                Security.verifyPurchase(sPublicKey, sData.get(0), sSignatures.get(0));
+            }
+        });
+        AllocationCounter.report("Security.Verifier.verifyPurchase", new Runnable() {
+            @Override
+            public void run() {
+                verifier.verifyPurchase(sData.get(0), sSignatures.get(0));
+            }
+        });
+    }
+}